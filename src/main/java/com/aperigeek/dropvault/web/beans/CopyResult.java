@@ -0,0 +1,52 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.beans;
+
+import java.util.List;
+
+/**
+ * Outcome of a copy.
+ *
+ * @author Vivien Barousse
+ */
+public class CopyResult {
+    
+    private boolean overwritten;
+    
+    private List<String> failures;
+
+    public CopyResult(boolean overwritten, List<String> failures) {
+        this.overwritten = overwritten;
+        this.failures = failures;
+    }
+
+    /**
+     * Whether an existing resource has been replaced by the copy.
+     */
+    public boolean isOverwritten() {
+        return overwritten;
+    }
+
+    /**
+     * Paths, relative to the copy, of the resources that could not be 
+     * copied.
+     */
+    public List<String> getFailures() {
+        return failures;
+    }
+    
+}
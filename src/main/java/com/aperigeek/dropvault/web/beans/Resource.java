@@ -16,7 +16,9 @@
  */
 package com.aperigeek.dropvault.web.beans;
 
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import org.bson.types.ObjectId;
 
 /**
@@ -32,8 +34,16 @@ public class Resource {
     
     private ObjectId id;
     
+    private String user;
+    
+    private ObjectId parent;
+    
     private String name;
     
+    private String path;
+    
+    private List<ObjectId> ancestors = Collections.emptyList();
+    
     private Date creationDate;
     
     private Date modificationDate;
@@ -106,6 +116,52 @@ public class Resource {
         return id;
     }
 
+    /**
+     * Id of the folder containing this resource, null for root folders.
+     */
+    public ObjectId getParent() {
+        return parent;
+    }
+
+    public void setParent(ObjectId parent) {
+        this.parent = parent;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    /**
+     * Full path of this resource, relative to the user's root folder.
+     * 
+     * The root folder path is the empty string, and each descendant's path
+     * is its parent path followed by "/" and its name. May be null for
+     * resources that have not been migrated yet.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Ids of all the folders containing this resource, starting with the
+     * user's root folder and ending with its direct parent.
+     */
+    public List<ObjectId> getAncestors() {
+        return ancestors;
+    }
+
+    public void setAncestors(List<ObjectId> ancestors) {
+        this.ancestors = ancestors;
+    }
+
     public Date getModificationDate() {
         return modificationDate;
     }
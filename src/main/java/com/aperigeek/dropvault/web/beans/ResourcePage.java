@@ -0,0 +1,48 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.beans;
+
+import java.util.List;
+
+/**
+ * A page of children of a folder, sorted by name.
+ *
+ * @author Vivien Barousse
+ */
+public class ResourcePage {
+    
+    private List<Resource> resources;
+    
+    private String nextToken;
+
+    public ResourcePage(List<Resource> resources, String nextToken) {
+        this.resources = resources;
+        this.nextToken = nextToken;
+    }
+
+    public List<Resource> getResources() {
+        return resources;
+    }
+
+    /**
+     * Continuation token of the next page, or null if this is the last page.
+     */
+    public String getNextToken() {
+        return nextToken;
+    }
+    
+}
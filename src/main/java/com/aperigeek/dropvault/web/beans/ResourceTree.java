@@ -0,0 +1,89 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.beans;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.bson.types.ObjectId;
+
+/**
+ * A resource and some of its descendants, loaded at once.
+ *
+ * @author Vivien Barousse
+ */
+public class ResourceTree {
+    
+    private Resource root;
+    
+    private Map<ObjectId, List<Resource>> children = 
+            new HashMap<ObjectId, List<Resource>>();
+    
+    private int size = 1;
+    
+    private int queryCount;
+
+    public ResourceTree(Resource root) {
+        this.root = root;
+    }
+
+    public Resource getRoot() {
+        return root;
+    }
+    
+    public void add(Resource resource) {
+        List<Resource> siblings = children.get(resource.getParent());
+        if (siblings == null) {
+            siblings = new ArrayList<Resource>();
+            children.put(resource.getParent(), siblings);
+        }
+        siblings.add(resource);
+        size++;
+    }
+    
+    /**
+     * Returns the loaded children of a resource of this tree.
+     */
+    public List<Resource> getChildren(Resource parent) {
+        List<Resource> list = children.get(parent.getId());
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return list;
+    }
+
+    /**
+     * Number of resources in this tree, including its root.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Number of queries issued to load this tree.
+     */
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    public void setQueryCount(int queryCount) {
+        this.queryCount = queryCount;
+    }
+    
+}
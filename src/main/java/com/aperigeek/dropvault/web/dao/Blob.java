@@ -0,0 +1,61 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.dao;
+
+/**
+ * An encrypted data file, shared by all the files of a user having the 
+ * same content.
+ *
+ * @author Vivien Barousse
+ */
+public class Blob {
+    
+    private String file;
+    
+    private String hash;
+    
+    private long length;
+
+    public Blob(String file, String hash, long length) {
+        this.file = file;
+        this.hash = hash;
+        this.length = length;
+    }
+
+    /**
+     * Absolute path of the encrypted data file.
+     */
+    public String getFile() {
+        return file;
+    }
+
+    /**
+     * Hex encoded HMAC-SHA256 of the plain content, keyed with a key 
+     * derived from the owner's secret key.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Length of the plain content.
+     */
+    public long getLength() {
+        return length;
+    }
+    
+}
@@ -0,0 +1,343 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.dao;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.DependsOn;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+
+/**
+ * Reclaims the data files no longer referenced by any file, and reports
+ * references to missing data files.
+ * 
+ * The storage folder is walked one directory at a time and data files are
+ * checked against the database in batches, so that memory usage does not
+ * depend on the number of data files. Recent data files are skipped, as
+ * they may belong to uploads still in progress. Scans are throttled to 
+ * limit their impact on the regular load.
+ *
+ * @author Vivien Barousse
+ */
+@Singleton
+@Startup
+@DependsOn({"MongoService", "BlobStore"})
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class BlobCollector {
+    
+    private static final Logger log = Logger.getLogger(BlobCollector.class.getName());
+    
+    // TODO: export to configuration file
+    private static final long SCAN_INTERVAL = 24 * 60 * 60 * 1000; // 24 hours
+    
+    // TODO: export to configuration file
+    private static final long INITIAL_DELAY = 60 * 60 * 1000; // 1 hour
+    
+    // TODO: export to configuration file
+    private static final long GRACE_PERIOD = 24 * 60 * 60 * 1000; // 24 hours
+    
+    // TODO: export to configuration file
+    private static final int MAX_FILES_PER_SECOND = 5000;
+    
+    private static final int BATCH_SIZE = 500;
+    
+    @EJB
+    private MongoService mongo;
+    
+    private ScheduledExecutorService scheduler;
+    
+    private volatile ScanReport lastReport;
+    
+    @PostConstruct
+    protected void start() {
+        DBCollection contents = mongo.getDataBase().getCollection("contents");
+        contents.ensureIndex(new BasicDBObject("file", 1));
+        
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "dropvault-blob-collector");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    scan();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException ex) {
+                    log.log(Level.SEVERE, "Storage scan failed", ex);
+                }
+            }
+        }, INITIAL_DELAY, SCAN_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    protected void stop() {
+        scheduler.shutdownNow();
+    }
+    
+    /**
+     * @return Report of the last complete scan, or null if none has run yet
+     */
+    public ScanReport getLastReport() {
+        return lastReport;
+    }
+    
+    protected void scan() throws InterruptedException {
+        ScanReport report = new ScanReport();
+        Throttle throttle = new Throttle();
+        
+        long limit = System.currentTimeMillis() - GRACE_PERIOD;
+        List<File> batch = new ArrayList<File>(BATCH_SIZE);
+        
+        File[] users = BlobStore.getStorageFolder().listFiles();
+        if (users != null) {
+            for (File user : users) {
+                File[] folders = user.listFiles();
+                if (folders == null) {
+                    continue;
+                }
+                for (File folder : folders) {
+                    String[] names = folder.list();
+                    if (names == null) {
+                        continue;
+                    }
+                    for (String name : names) {
+                        File file = new File(folder, name);
+                        report.scanned++;
+                        if (file.lastModified() >= limit) {
+                            continue;
+                        }
+                        batch.add(file);
+                        if (batch.size() == BATCH_SIZE) {
+                            collect(batch, report);
+                            batch.clear();
+                            throttle.pause(BATCH_SIZE);
+                        }
+                    }
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            collect(batch, report);
+        }
+        
+        removeReleasedBlobs(report);
+        findDanglingReferences(report, throttle);
+        
+        report.end = System.currentTimeMillis();
+        lastReport = report;
+        log.info(report.toString());
+    }
+    
+    /**
+     * Deletes the data files of a batch that are referenced neither by a 
+     * file content nor by a blob.
+     */
+    private void collect(List<File> batch, ScanReport report) {
+        DBCollection contents = mongo.getDataBase().getCollection("contents");
+        DBCollection blobs = mongo.getDataBase().getCollection("blobs");
+        
+        List<String> paths = new ArrayList<String>(batch.size());
+        for (File file : batch) {
+            paths.add(file.getAbsolutePath());
+        }
+        DBObject in = new BasicDBObject("$in", paths);
+        
+        Set<String> referenced = new HashSet<String>();
+        DBCursor cursor = contents.find(new BasicDBObject("file", in), 
+                new BasicDBObject("file", 1));
+        while (cursor.hasNext()) {
+            referenced.add((String) cursor.next().get("file"));
+        }
+        cursor = blobs.find(new BasicDBObject("file", in)
+                .append("refs", new BasicDBObject("$gt", 0)), 
+                new BasicDBObject("file", 1));
+        while (cursor.hasNext()) {
+            referenced.add((String) cursor.next().get("file"));
+        }
+        
+        for (File file : batch) {
+            if (referenced.contains(file.getAbsolutePath())) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                report.reclaimedFiles++;
+                report.reclaimedBytes += length;
+            } else {
+                log.log(Level.WARNING, "Could not delete orphaned data file {0}", file);
+            }
+        }
+    }
+    
+    /**
+     * Removes blobs left without references, for instance when the server
+     * stopped while their last reference was being released, and the 
+     * entries of released untracked data files.
+     * 
+     * Each blob is removed on its own, and its data file is only deleted 
+     * if this call removed it.
+     */
+    private void removeReleasedBlobs(ScanReport report) {
+        DBCollection blobs = mongo.getDataBase().getCollection("blobs");
+        DBObject released = new BasicDBObject("refs", new BasicDBObject("$lte", 0))
+                .append("creationDate", new BasicDBObject("$lt", 
+                        new Date(System.currentTimeMillis() - GRACE_PERIOD)));
+        
+        DBObject blob;
+        while ((blob = blobs.findAndModify(released, 
+                new BasicDBObject("file", 1), 
+                null, true, null, false, false)) != null) {
+            File file = new File((String) blob.get("file"));
+            long length = file.length();
+            if (file.delete()) {
+                report.reclaimedFiles++;
+                report.reclaimedBytes += length;
+            }
+        }
+    }
+    
+    /**
+     * Counts file contents whose data file no longer exists. They are only
+     * reported, as their content cannot be recovered.
+     */
+    private void findDanglingReferences(ScanReport report, Throttle throttle) 
+            throws InterruptedException {
+        
+        DBCollection contents = mongo.getDataBase().getCollection("contents");
+        DBCursor cursor = contents.find(
+                new BasicDBObject("file", new BasicDBObject("$exists", true)), 
+                new BasicDBObject("file", 1).append("resource", 1))
+                .batchSize(BATCH_SIZE);
+        try {
+            int count = 0;
+            while (cursor.hasNext()) {
+                DBObject content = cursor.next();
+                if (!new File((String) content.get("file")).exists()) {
+                    report.danglingReferences++;
+                    log.log(Level.WARNING, "Data file {0} of resource {1} is missing", 
+                            new Object[]{content.get("file"), content.get("resource")});
+                }
+                if (++count == BATCH_SIZE) {
+                    throttle.pause(count);
+                    count = 0;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+    
+    /**
+     * Statistics of a storage scan.
+     */
+    public static class ScanReport {
+        
+        private final long start = System.currentTimeMillis();
+        
+        private long end;
+        
+        private long scanned;
+        
+        private long reclaimedFiles;
+        
+        private long reclaimedBytes;
+        
+        private long danglingReferences;
+
+        public long getScannedFiles() {
+            return scanned;
+        }
+
+        public long getReclaimedFiles() {
+            return reclaimedFiles;
+        }
+
+        public long getReclaimedBytes() {
+            return reclaimedBytes;
+        }
+
+        public long getDanglingReferences() {
+            return danglingReferences;
+        }
+        
+        public long getDuration() {
+            return end - start;
+        }
+        
+        /**
+         * @return Number of data files scanned per second
+         */
+        public double getThroughput() {
+            return getDuration() == 0 ? scanned : scanned * 1000.0 / getDuration();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Storage scan: %d data files scanned in %d ms (%.0f/s), "
+                    + "%d orphaned data files reclaimed (%d bytes), %d missing data files",
+                    scanned, getDuration(), getThroughput(), 
+                    reclaimedFiles, reclaimedBytes, danglingReferences);
+        }
+        
+    }
+    
+    /**
+     * Limits the number of data files processed per second.
+     */
+    private static class Throttle {
+        
+        private final long start = System.currentTimeMillis();
+        
+        private long processed;
+        
+        public void pause(int count) throws InterruptedException {
+            processed += count;
+            long expected = processed * 1000 / MAX_FILES_PER_SECOND;
+            long elapsed = System.currentTimeMillis() - start;
+            if (expected > elapsed) {
+                Thread.sleep(expected - elapsed);
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,391 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.dao;
+
+import com.aperigeek.dropvault.web.service.SecretKeyService;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Date;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.DependsOn;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * Stores encrypted data files, deduplicated by content.
+ * 
+ * Each user's files are keyed by an HMAC-SHA256 of their plain content,
+ * keyed with a key derived from the user's secret key and computed while 
+ * they are written. 
+ * Unlike a plain digest, it does not reveal to someone with access to the
+ * database whether a user holds a given file. Identical contents uploaded by 
+ * the same user share a single data file, tracked in the blobs collection
+ * with a reference count. Data files are deleted once their last reference 
+ * is released.
+ * 
+ * Data files written before deduplication have no blobs entry, they are
+ * considered referenced once.
+ *
+ * @author Vivien Barousse
+ */
+@Singleton
+@Startup
+@DependsOn("MongoService")
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class BlobStore {
+    
+    private static final Logger log = Logger.getLogger(BlobStore.class.getName());
+    
+    // TODO: export to configuration file
+    private static final File storageFolder = new File("/home/dropvault/storage");
+    
+    private static final int MAX_ATTEMPTS = 3;
+    
+    /**
+     * Label under which the MAC key is derived from the user's secret key, 
+     * so that the encryption key is never used for anything else.
+     */
+    private static final byte[] MAC_KEY_LABEL = 
+            "dropvault-blob-mac".getBytes(Charset.forName("UTF-8"));
+    
+    @EJB
+    private MongoService mongo;
+    
+    @EJB
+    private SecretKeyService keyService;
+    
+    @PostConstruct
+    protected void init() {
+        if (!storageFolder.exists()) {
+            storageFolder.mkdirs();
+        }
+        
+        DBCollection blobs = getBlobs();
+        blobs.ensureIndex(new BasicDBObject("file", 1), 
+                new BasicDBObject("unique", true));
+        // Blobs of data files written before deduplication have no key
+        blobs.ensureIndex(new BasicDBObject("key", 1), 
+                new BasicDBObject("unique", true).append("sparse", true));
+    }
+    
+    public static File getStorageFolder() {
+        return storageFolder;
+    }
+    
+    /**
+     * Stores some content, reusing an existing data file of the user if 
+     * it has the same content.
+     * 
+     * The returned blob holds one reference, that must eventually be 
+     * released.
+     * 
+     * @param username Owner of the content
+     * @param password User's password, used to encrypt the content
+     * @param data Content to store, closed once read
+     * @return Stored blob
+     */
+    public Blob write(String username, char[] password, InputStream data) throws IOException {
+        Mac mac = createMac(username, password);
+        CountingInputStream counter = new CountingInputStream(data);
+        File file = createDataFile(new MacInputStream(counter, mac), username, password);
+        long length = counter.getByteCount();
+        String hash = new String(Hex.encodeHex(mac.doFinal()));
+        String key = username + "/" + hash;
+        
+        DBCollection blobs = getBlobs();
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            DBObject existing = blobs.findAndModify(
+                    new BasicDBObject("key", key).append("refs", new BasicDBObject("$gt", 0)), 
+                    null, null, false, 
+                    new BasicDBObject("$inc", new BasicDBObject("refs", 1)), 
+                    true, false);
+            if (existing != null) {
+                file.delete();
+                return new Blob((String) existing.get("file"), hash, length);
+            }
+            
+            DBObject blob = new BasicDBObject();
+            blob.put("user", username);
+            blob.put("key", key);
+            blob.put("file", file.getAbsolutePath());
+            blob.put("refs", 1);
+            blob.put("creationDate", new Date());
+            try {
+                blobs.insert(blob, WriteConcern.SAFE);
+                return new Blob(file.getAbsolutePath(), hash, length);
+            } catch (MongoException.DuplicateKey ex) {
+                // Same content stored concurrently, or its last reference
+                // being released, try again
+            }
+        }
+        
+        // Keep the content in its own data file rather than failing
+        log.log(Level.WARNING, "Could not deduplicate content {0} of user {1}", 
+                new Object[]{hash, username});
+        DBObject blob = new BasicDBObject();
+        blob.put("user", username);
+        blob.put("file", file.getAbsolutePath());
+        blob.put("refs", 1);
+        blob.put("creationDate", new Date());
+        blobs.insert(blob);
+        return new Blob(file.getAbsolutePath(), hash, length);
+    }
+    
+    /**
+     * Computes the hash of some content, as returned in {@link Blob#getHash()}.
+     * 
+     * @param username Owner of the content
+     * @param password User's password
+     */
+    public String hash(String username, char[] password, 
+            byte[] data, int offset, int length) {
+        Mac mac = createMac(username, password);
+        mac.update(data, offset, length);
+        return new String(Hex.encodeHex(mac.doFinal()));
+    }
+    
+    /**
+     * Adds a reference to a data file.
+     * 
+     * @param username Owner of the data file
+     * @param file Absolute path of the data file
+     */
+    public void acquire(String username, String file) {
+        acquire(username, file, 1);
+    }
+    
+    /**
+     * Adds several references to a data file at once.
+     * 
+     * @param username Owner of the data file
+     * @param file Absolute path of the data file
+     * @param count Number of references to add
+     * @throws IllegalStateException If the data file has been released
+     */
+    public void acquire(String username, String file, int count) {
+        DBCollection blobs = getBlobs();
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            // A blob whose last reference is being released is never revived
+            DBObject blob = blobs.findAndModify(
+                    new BasicDBObject("file", file)
+                            .append("refs", new BasicDBObject("$gt", 0)), 
+                    new BasicDBObject("$inc", new BasicDBObject("refs", count)));
+            if (blob != null) {
+                return;
+            }
+            
+            if (blobs.findOne(new BasicDBObject("file", file)) != null 
+                    || !new File(file).exists()) {
+                break;
+            }
+            
+            // Untracked data file, already referenced once
+            DBObject legacy = new BasicDBObject();
+            legacy.put("user", username);
+            legacy.put("file", file);
+            legacy.put("refs", count + 1);
+            legacy.put("creationDate", new Date());
+            try {
+                blobs.insert(legacy, WriteConcern.SAFE);
+                return;
+            } catch (MongoException.DuplicateKey ex) {
+                // Tracked concurrently, try again
+            }
+        }
+        throw new IllegalStateException("Could not acquire data file " + file);
+    }
+    
+    /**
+     * Removes a reference to a data file, deleting it if it was the last 
+     * one.
+     * 
+     * Only the caller that removes the blob deletes the data file, so that
+     * a data file is never deleted while a blob still references it.
+     * 
+     * @param file Absolute path of the data file
+     */
+    public void release(String file) {
+        DBCollection blobs = getBlobs();
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            DBObject blob = blobs.findAndModify(new BasicDBObject("file", file), 
+                    null, null, false, 
+                    new BasicDBObject("$inc", new BasicDBObject("refs", -1)), 
+                    true, false);
+
+            if (blob != null) {
+                if (((Number) blob.get("refs")).intValue() > 0) {
+                    return;
+                }
+                DBObject removed = blobs.findAndModify(
+                        new BasicDBObject("_id", blob.get("_id"))
+                                .append("refs", new BasicDBObject("$lte", 0)), 
+                        null, null, true, null, false, false);
+                if (removed != null) {
+                    deleteDataFile(file);
+                }
+                return;
+            }
+
+            // Untracked data file, referenced once. The released entry 
+            // prevents it from being acquired while it is deleted, it is
+            // removed later by the BlobCollector.
+            DBObject released = new BasicDBObject();
+            released.put("file", file);
+            released.put("refs", 0);
+            released.put("creationDate", new Date());
+            try {
+                blobs.insert(released, WriteConcern.SAFE);
+                deleteDataFile(file);
+                return;
+            } catch (MongoException.DuplicateKey ex) {
+                // Tracked concurrently, try again
+            }
+        }
+        log.log(Level.WARNING, "Could not release data file {0}", file);
+    }
+    
+    private void deleteDataFile(String file) {
+        if (!new File(file).delete()) {
+            log.log(Level.WARNING, "Could not delete data file {0}", file);
+        }
+    }
+    
+    private Mac createMac(String username, char[] password) {
+        SecretKey key = keyService.getSecretKey(username, password);
+        try {
+            Mac derivation = Mac.getInstance("HmacSHA256");
+            derivation.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+            byte[] macKey = derivation.doFinal(MAC_KEY_LABEL);
+            
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException ex) {
+            throw new RuntimeException("Bad configuration", ex);
+        }
+    }
+    
+    protected File createDataFile(InputStream data, String username, char[] password) throws IOException {
+        try {
+            String fileName = UUID.randomUUID().toString();
+            
+            File folder = new File(storageFolder, username);
+            folder = new File(folder, fileName.substring(0, 2));
+            folder.mkdirs();
+                    
+            File file = new File(folder, fileName);
+            
+            Cipher cipher = Cipher.getInstance("Blowfish");
+            cipher.init(Cipher.ENCRYPT_MODE, keyService.getSecretKey(username, password));
+            
+            OutputStream fOut = new BufferedOutputStream(new FileOutputStream(file));
+            CipherOutputStream out = new CipherOutputStream(fOut, cipher);
+            
+            byte[] buffer = new byte[8192];
+            int readed;
+            while ((readed = data.read(buffer)) != -1) {
+                out.write(buffer, 0, readed);
+            }
+            
+            out.flush();
+            out.close();
+            
+            return file;
+        } catch (GeneralSecurityException ex) {
+            // TODO: better exception handling
+            Logger.getAnonymousLogger().log(Level.SEVERE, "ERROR", ex);
+            throw new RuntimeException(ex);
+        } finally {
+            data.close();
+        }
+    }
+    
+    private DBCollection getBlobs() {
+        return mongo.getDataBase().getCollection("blobs");
+    }
+    
+    /**
+     * Updates a MAC with the data read from a stream.
+     */
+    private static class MacInputStream extends FilterInputStream {
+        
+        private final Mac mac;
+
+        public MacInputStream(InputStream in, Mac mac) {
+            super(in);
+            this.mac = mac;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                mac.update((byte) b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                mac.update(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes would not be authenticated
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return read == -1 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+        
+    }
+    
+}
@@ -16,48 +16,50 @@
  */
 package com.aperigeek.dropvault.web.dao;
 
+import com.aperigeek.dropvault.web.beans.CopyResult;
 import com.aperigeek.dropvault.web.beans.Resource;
+import com.aperigeek.dropvault.web.beans.ResourcePage;
+import com.aperigeek.dropvault.web.beans.ResourceTree;
+import com.aperigeek.dropvault.web.service.ContentExtractionException;
 import com.aperigeek.dropvault.web.service.ContentExtractionService;
+import com.aperigeek.dropvault.web.service.ExtractedContent;
 import com.aperigeek.dropvault.web.service.FileTypeDetectionService;
-import com.aperigeek.dropvault.web.service.IndexException;
+import com.aperigeek.dropvault.web.service.IndexJob;
 import com.aperigeek.dropvault.web.service.IndexService;
+import com.aperigeek.dropvault.web.service.IndexingQueue;
+import com.aperigeek.dropvault.web.service.SecretKeyService;
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.security.KeyStore;
-import java.security.KeyStore.SecretKeyEntry;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.Set;
+import java.util.regex.Pattern;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
-import javax.crypto.KeyGenerator;
-import javax.crypto.SecretKey;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
-import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
 import org.bson.types.ObjectId;
 
 /**
@@ -67,19 +69,19 @@ import org.bson.types.ObjectId;
 @Stateless
 public class MongoFileService {
     
+    private static final Logger log = Logger.getLogger(MongoFileService.class.getName());
+    
     // TODO: export to configuration file
-    private static final File storageFolder = new File("/home/dropvault/storage");
+    private static final int MAX_COPY_RESOURCES = 50000;
     
-    private static final File secretsFolder = new File("/home/dropvault/secret");
+    private static final int BATCH_SIZE = 1000;
     
-    static {
-        if (!storageFolder.exists()) {
-            storageFolder.mkdirs();
-        }
-        if (!secretsFolder.exists()) {
-            secretsFolder.mkdirs();
-        }
-    }
+    /**
+     * Files overwritten with content up to this size are compared with 
+     * their current content before being encrypted.
+     */
+    // TODO: export to configuration file
+    private static final int COMPARED_CONTENT_SIZE = 1024 * 1024;
     
     @EJB
     private MongoService mongo;
@@ -93,6 +95,21 @@ public class MongoFileService {
     @EJB
     private IndexService indexService;
     
+    @EJB
+    private ResourceTreeCache treeCache;
+    
+    @EJB
+    private SecretKeyService keyService;
+    
+    @EJB
+    private IndexingQueue indexingQueue;
+    
+    @EJB
+    private BlobStore blobStore;
+    
+    @EJB
+    private ResourcePurger purger;
+    
     public Resource getRootFolder(String username) {
         DBCollection files = mongo.getDataBase().getCollection("files");
         
@@ -108,6 +125,8 @@ public class MongoFileService {
             newRoot.append("name", username);
             newRoot.append("root", true);
             newRoot.append("user", username);
+            newRoot.append("path", "");
+            newRoot.append("ancestors", new ArrayList<ObjectId>());
             newRoot.append("creationDate", new Date());
             newRoot.append("modificationDate", new Date());
             files.insert(newRoot);
@@ -115,11 +134,42 @@ public class MongoFileService {
         }
         
         Resource res = buildResource(root);
+        treeCache.putRootId(username, res.getId());
         
         return res;
     }
     
+    /**
+     * Returns a lightweight reference to the user's root folder, suitable
+     * for path resolution only.
+     * 
+     * Unlike {@link #getRootFolder(java.lang.String)}, no query is issued
+     * when the root folder id is already known.
+     */
+    protected Resource getRootReference(String username) {
+        ObjectId id = treeCache.getRootId(username);
+        if (id == null) {
+            return getRootFolder(username);
+        }
+        
+        Resource root = new Resource(id, username, null, null);
+        root.setUser(username);
+        root.setPath("");
+        return root;
+    }
+    
     public List<Resource> getChildren(Resource resource) {
+        return getChildren(resource, null);
+    }
+    
+    /**
+     * Lists the children of a resource, loading only some of their fields.
+     * 
+     * @param resource Parent resource
+     * @param fields Fields to load, null to load all fields
+     * @return Children of the resource
+     */
+    public List<Resource> getChildren(Resource resource, Set<String> fields) {
         DBCollection col = mongo.getDataBase().getCollection("files");
         
         DBObject filter = new BasicDBObject();
@@ -127,7 +177,7 @@ public class MongoFileService {
         
         List<Resource> children = new ArrayList<Resource>();
         
-        DBCursor cursor = col.find(filter);
+        DBCursor cursor = col.find(filter, toProjection(fields));
         while (cursor.hasNext()) {
             children.add(buildResource(cursor.next()));
         }
@@ -135,6 +185,250 @@ public class MongoFileService {
         return children;
     }
     
+    /**
+     * Iterates over the children of a resource, sorted by name.
+     * 
+     * @param resource Parent resource
+     * @param token Continuation token, children are listed after the 
+     *              resource it designates; null to start from the first child
+     * @param fields Fields to load, null to load all fields
+     * @param batchSize Number of children fetched per round-trip
+     * @return Cursor over the children
+     */
+    public ResourceCursor findChildren(Resource resource, String token, 
+            Set<String> fields, int batchSize) {
+        
+        DBCollection col = mongo.getDataBase().getCollection("files");
+        
+        DBObject filter = new BasicDBObject("parent", resource.getId());
+        if (token != null) {
+            filter.put("name", new BasicDBObject("$gt", decodeToken(token)));
+        }
+        
+        // Sorting on name uses the {parent, name} index
+        DBCursor cursor = col.find(filter, toProjection(fields))
+                .sort(new BasicDBObject("name", 1))
+                .batchSize(batchSize);
+        
+        return new ResourceCursor(cursor, this);
+    }
+    
+    /**
+     * Lists a page of the children of a resource, sorted by name.
+     * 
+     * @param resource Parent resource
+     * @param token Continuation token, null for the first page
+     * @param limit Maximum number of children in the page
+     * @param fields Fields to load, null to load all fields
+     * @return Page of children, with the token of the next page
+     */
+    public ResourcePage getChildren(Resource resource, String token, 
+            int limit, Set<String> fields) {
+        
+        List<Resource> children = new ArrayList<Resource>(Math.min(limit, 1024));
+        String next = null;
+        
+        // One extra child tells whether there is a next page
+        ResourceCursor cursor = findChildren(resource, token, fields, limit + 1);
+        try {
+            cursor.limit(limit + 1);
+            while (cursor.hasNext()) {
+                Resource child = cursor.next();
+                if (children.size() == limit) {
+                    next = getToken(children.get(limit - 1));
+                    break;
+                }
+                children.add(child);
+            }
+        } finally {
+            cursor.close();
+        }
+        
+        return new ResourcePage(children, next);
+    }
+    
+    /**
+     * Builds the continuation token listing children after a resource.
+     * 
+     * Names are unique among siblings, which makes them stable tokens.
+     */
+    public String getToken(Resource resource) {
+        try {
+            return Base64.encodeBase64URLSafeString(resource.getName().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    private String decodeToken(String token) {
+        try {
+            return new String(Base64.decodeBase64(token), "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    /**
+     * Loads a resource and its descendants up to a given depth.
+     * 
+     * The whole subtree is loaded using a single query on the resources'
+     * ancestors, or one query per level for resources that have not been
+     * migrated yet.
+     * 
+     * @param root Root of the subtree
+     * @param depth Maximum depth, -1 for infinity
+     * @param maxSize Maximum number of resources in the tree
+     * @return Loaded subtree
+     * @throws TooManyResourcesException If the tree is bigger than maxSize
+     */
+    public ResourceTree getSubtree(Resource root, int depth, int maxSize) throws TooManyResourcesException {
+        return getSubtree(root, depth, maxSize, null);
+    }
+    
+    /**
+     * Loads a resource and its descendants, with only some of their fields.
+     * 
+     * @see #getSubtree(Resource, int, int)
+     * @param fields Fields to load, null to load all fields
+     */
+    public ResourceTree getSubtree(Resource root, int depth, int maxSize, Set<String> fields) throws TooManyResourcesException {
+        DBCollection col = mongo.getDataBase().getCollection("files");
+        DBObject keys = toProjection(fields);
+        
+        ResourceTree tree = new ResourceTree(root);
+        if (depth == 0 || !root.isDirectory()) {
+            return tree;
+        }
+        
+        int queries = 0;
+        
+        if (depth != 1 && root.getPath() != null) {
+            DBObject filter = new BasicDBObject("ancestors", root.getId());
+            filter.put("deleted", new BasicDBObject("$ne", true));
+            if (depth > 0) {
+                // Descendants at depth n have exactly n more ancestors
+                filter.put("ancestors." + (root.getAncestors().size() + depth), 
+                        new BasicDBObject("$exists", false));
+            }
+            
+            DBCursor cursor = col.find(filter, keys).limit(maxSize);
+            queries++;
+            while (cursor.hasNext()) {
+                addToTree(tree, buildResource(cursor.next()), maxSize);
+            }
+        } else {
+            List<ObjectId> level = Arrays.asList(root.getId());
+            for (int i = 0; (depth < 0 || i < depth) && !level.isEmpty(); i++) {
+                DBObject filter = new BasicDBObject("parent", 
+                        new BasicDBObject("$in", level));
+                
+                List<ObjectId> next = new ArrayList<ObjectId>();
+                DBCursor cursor = col.find(filter, keys).limit(maxSize);
+                queries++;
+                while (cursor.hasNext()) {
+                    Resource res = buildResource(cursor.next());
+                    addToTree(tree, res, maxSize);
+                    if (res.isDirectory()) {
+                        next.add(res.getId());
+                    }
+                }
+                level = next;
+            }
+        }
+        
+        tree.setQueryCount(queries);
+        return tree;
+    }
+    
+    /**
+     * Iterates over the descendants of a resource, up to a given depth.
+     * 
+     * Beyond the direct children, descendants are sorted by path, so that
+     * every resource comes after its parent. This requires the resource to
+     * have been migrated to materialized paths.
+     * 
+     * @param root Root of the subtree, not included in the results
+     * @param depth Maximum depth, -1 for infinity
+     * @return Cursor over the descendants
+     */
+    public ResourceCursor findSubtree(Resource root, int depth) {
+        return findSubtree(root, depth, null);
+    }
+    
+    /**
+     * Iterates over the descendants of a resource, with only some of their 
+     * fields.
+     * 
+     * @see #findSubtree(Resource, int)
+     * @param fields Fields to load, null to load all fields
+     */
+    public ResourceCursor findSubtree(Resource root, int depth, Set<String> fields) {
+        DBCollection col = mongo.getDataBase().getCollection("files");
+        
+        DBCursor cursor = col.find(getSubtreeFilter(root, depth), toProjection(fields));
+        if (depth != 1) {
+            cursor.sort(new BasicDBObject("path", 1));
+        }
+        
+        return new ResourceCursor(cursor, this);
+    }
+    
+    /**
+     * Counts the descendants of a resource, up to a given depth.
+     * 
+     * @param root Root of the subtree, not included in the count
+     * @param depth Maximum depth, -1 for infinity
+     * @return Number of descendants
+     */
+    public long countSubtree(Resource root, int depth) {
+        DBCollection col = mongo.getDataBase().getCollection("files");
+        return col.count(getSubtreeFilter(root, depth));
+    }
+    
+    private DBObject toProjection(Set<String> fields) {
+        if (fields == null) {
+            return null;
+        }
+        DBObject keys = new BasicDBObject();
+        for (String field : fields) {
+            keys.put(field, 1);
+        }
+        return keys;
+    }
+    
+    private DBObject getSubtreeFilter(Resource root, int depth) {
+        if (depth == 1) {
+            return new BasicDBObject("parent", root.getId());
+        }
+        
+        // Prefix regular expressions can use the {user, path} index
+        DBObject filter = new BasicDBObject("user", root.getUser());
+        filter.put("path", Pattern.compile("^" + quoteRegex(root.getPath() + "/")));
+        if (depth > 0) {
+            filter.put("ancestors." + (root.getAncestors().size() + depth), 
+                    new BasicDBObject("$exists", false));
+        }
+        return filter;
+    }
+    
+    private static String quoteRegex(String str) {
+        StringBuilder quoted = new StringBuilder(str.length() + 16);
+        for (char c : str.toCharArray()) {
+            if ("\\^$.|?*+()[]{}".indexOf(c) != -1) {
+                quoted.append('\\');
+            }
+            quoted.append(c);
+        }
+        return quoted.toString();
+    }
+    
+    private void addToTree(ResourceTree tree, Resource res, int maxSize) throws TooManyResourcesException {
+        if (tree.getSize() >= maxSize) {
+            throw new TooManyResourcesException();
+        }
+        tree.add(res);
+    }
+    
     // TODO: implement support for ..
     public Resource getChild(Resource resource, String name) {
         if ("".equals(name) || ".".equals(name)) {
@@ -142,6 +436,16 @@ public class MongoFileService {
         }
         
         DBCollection col = mongo.getDataBase().getCollection("files");
+        String username = resource.getUser();
+        
+        ObjectId cachedId = treeCache.getChildId(username, resource.getId(), name);
+        if (cachedId != null) {
+            DBObject cached = col.findOne(new BasicDBObject("_id", cachedId));
+            if (cached != null) {
+                return buildResource(cached);
+            }
+            treeCache.removeChild(username, resource.getId(), name);
+        }
         
         DBObject filter = new BasicDBObject();
         filter.put("name", name);
@@ -150,41 +454,137 @@ public class MongoFileService {
         DBObject child = col.findOne(filter);
         
         Resource childRes = buildResource(child);
+        if (childRes != null) {
+            treeCache.putChild(username, resource.getId(), name, childRes.getId());
+        }
         
         return childRes;
     }
     
     // TODO: implement support for ..
     public Resource getResourceAt(Resource parent, String... path) throws ResourceNotFoundException {
+        return getResourceAt(parent, true, path);
+    }
+    
+    private Resource getResourceAt(Resource parent, boolean useCache, String... path) throws ResourceNotFoundException {
         DBCollection col = mongo.getDataBase().getCollection("files");
+        String username = parent.getUser();
         
-        DBObject obj = null;
-        ObjectId id = parent.getId();
-        
+        List<String> names = new ArrayList<String>(path.length);
         for (String name : path) {
-            if ("".equals(name) || ".".equals(name)) {
-                continue;
+            if (!"".equals(name) && !".".equals(name)) {
+                names.add(name);
+            }
+        }
+        
+        if (names.isEmpty()) {
+            return null;
+        }
+        
+        if (useCache) {
+            ObjectId id = parent.getId();
+            for (String name : names) {
+                id = treeCache.getChildId(username, id, name);
+                if (id == null) {
+                    break;
+                }
             }
             
+            if (id != null) {
+                DBObject obj = col.findOne(new BasicDBObject("_id", id));
+                if (obj != null) {
+                    return buildResource(obj);
+                }
+                // Stale cache entry, fall back to a full lookup
+                treeCache.invalidate(username);
+            }
+        }
+        
+        if (parent.getPath() == null) {
+            return walkResourceAt(parent, names);
+        }
+        
+        StringBuilder fullPath = new StringBuilder(parent.getPath());
+        for (String name : names) {
+            fullPath.append('/').append(name);
+        }
+        
+        DBObject filter = new BasicDBObjectBuilder()
+                .add("user", username)
+                .add("path", fullPath.toString())
+                .get();
+        DBObject obj = col.findOne(filter);
+        
+        if (obj == null) {
+            throw new ResourceNotFoundException();
+        }
+        
+        Resource res = buildResource(obj);
+        cacheLocation(res);
+        
+        return res;
+    }
+    
+    /**
+     * Resolves a path one segment at a time, for resources whose materialized
+     * path is not known.
+     */
+    private Resource walkResourceAt(Resource parent, List<String> names) throws ResourceNotFoundException {
+        DBCollection col = mongo.getDataBase().getCollection("files");
+        
+        DBObject obj = null;
+        ObjectId id = parent.getId();
+        
+        for (String name : names) {
             DBObject filter = new BasicDBObjectBuilder()
                     .add("name", name)
                     .add("parent", id)
                     .get();
             obj = col.findOne(filter);
-            
+
             if (obj == null) {
                 throw new ResourceNotFoundException();
             }
-            
-            id = (ObjectId) obj.get("_id");
+
+            ObjectId childId = (ObjectId) obj.get("_id");
+            treeCache.putChild(parent.getUser(), id, name, childId);
+            id = childId;
         }
         
         return buildResource(obj);
     }
     
+    /**
+     * Stores every segment of the resource's path in the tree cache.
+     */
+    private void cacheLocation(Resource res) {
+        String[] names = res.getPath().split("/");
+        List<ObjectId> ancestors = res.getAncestors();
+        for (int i = 1; i < names.length && i <= ancestors.size(); i++) {
+            ObjectId id = i < ancestors.size() ? ancestors.get(i) : res.getId();
+            treeCache.putChild(res.getUser(), ancestors.get(i - 1), names[i], id);
+        }
+    }
+    
+    /**
+     * Sets the materialized path and ancestors of a new resource.
+     */
+    private void setLocation(DBObject obj, Resource parent, String name) {
+        if (parent.getPath() == null) {
+            // Will be filled by the migration once the parent is migrated
+            return;
+        }
+        
+        List<ObjectId> ancestors = new ArrayList<ObjectId>(parent.getAncestors());
+        ancestors.add(parent.getId());
+        
+        obj.put("path", parent.getPath() + "/" + name);
+        obj.put("ancestors", ancestors);
+    }
+    
     public Resource mkcol(String username, String resource) throws ResourceAlreadyExistsException, ResourceNotFoundException {
         String[] path = resource.split("/");
-        Resource parent = getResourceAt(getRootFolder(username), 
+        Resource parent = getResourceAt(getRootReference(username), 
                 Arrays.copyOfRange(path, 0, path.length - 2));
         
         if (getChild(parent, path[path.length - 1]) != null) {
@@ -200,6 +600,7 @@ public class MongoFileService {
         obj.put("creationDate", new Date());
         obj.put("modificationDate", new Date());
         obj.put("parent", parent.getId());
+        setLocation(obj, parent, path[path.length - 1]);
         
         col.insert(obj);
         
@@ -207,12 +608,16 @@ public class MongoFileService {
                 new BasicDBObject("$set", 
                 new BasicDBObject("modificationDate", new Date())));
         
+        treeCache.putChild(username, parent.getId(), 
+                path[path.length - 1], (ObjectId) obj.get("_id"));
+        
         return buildResource(obj);
     }
     
     public Resource getResource(String id) {
         ObjectId oid = new ObjectId(id);
         DBObject query = new BasicDBObject("_id", oid);
+        query.put("deleted", new BasicDBObject("$ne", true));
         DBCollection files = mongo.getDataBase().getCollection("files");
         DBObject result = files.findOne(query);
         return buildResource(result);
@@ -220,10 +625,92 @@ public class MongoFileService {
     
     public Resource getResource(String username, String resource) throws ResourceNotFoundException {
         String[] path = resource.split("/");
-        Resource parent = getResourceAt(getRootFolder(username), path);
+        Resource parent = getResourceAt(getRootReference(username), path);
         return parent;
     }
     
+    /**
+     * Resolves the paths of several resources of a user at once.
+     * 
+     * Resources are fetched with a single query. Resources that have no 
+     * materialized path yet are resolved through their ancestors, fetched
+     * one level at a time and shared between resources.
+     * 
+     * @param username Owner of the resources
+     * @param ids Resources identifiers
+     * @return Paths of the resources, in the order of ids, without the 
+     *         resources that no longer exist
+     */
+    public Map<String, String> getPaths(String username, List<String> ids) {
+        DBCollection files = mongo.getDataBase().getCollection("files");
+        DBObject keys = toProjection(new HashSet<String>(
+                Arrays.asList("_id", "name", "parent", "path", "deleted")));
+        
+        List<ObjectId> oids = new ArrayList<ObjectId>(ids.size());
+        for (String id : ids) {
+            oids.add(new ObjectId(id));
+        }
+        
+        Map<ObjectId, DBObject> known = new HashMap<ObjectId, DBObject>();
+        List<ObjectId> missing = oids;
+        boolean hits = true;
+        while (!missing.isEmpty()) {
+            DBObject filter = new BasicDBObject("_id", new BasicDBObject("$in", missing));
+            if (hits) {
+                filter.put("user", username);
+                hits = false;
+            }
+            
+            List<ObjectId> next = new ArrayList<ObjectId>();
+            DBCursor cursor = files.find(filter, keys);
+            while (cursor.hasNext()) {
+                DBObject obj = cursor.next();
+                known.put((ObjectId) obj.get("_id"), obj);
+                
+                ObjectId parent = (ObjectId) obj.get("parent");
+                if (obj.get("path") == null && parent != null 
+                        && !known.containsKey(parent) && !next.contains(parent)) {
+                    next.add(parent);
+                }
+            }
+            missing = next;
+        }
+        
+        Map<ObjectId, String> memo = new HashMap<ObjectId, String>();
+        Map<String, String> paths = new LinkedHashMap<String, String>();
+        for (ObjectId oid : oids) {
+            String path = getPath(oid, known, memo);
+            if (path != null) {
+                paths.put(oid.toString(), path);
+            }
+        }
+        return paths;
+    }
+    
+    private String getPath(ObjectId id, Map<ObjectId, DBObject> known, Map<ObjectId, String> memo) {
+        if (memo.containsKey(id)) {
+            return memo.get(id);
+        }
+        
+        DBObject obj = known.get(id);
+        String path = null;
+        if (obj != null && !Boolean.TRUE.equals(obj.get("deleted"))) {
+            path = (String) obj.get("path");
+            ObjectId parent = (ObjectId) obj.get("parent");
+            if (path == null && parent == null) {
+                path = "";
+            } else if (path == null) {
+                String parentPath = getPath(parent, known, memo);
+                if (parentPath != null) {
+                    path = parentPath + "/" + obj.get("name");
+                }
+            }
+        }
+        
+        memo.put(id, path);
+        return path;
+    }
+    
     public Resource getParent(Resource res) {
         DBCollection files = mongo.getDataBase().getCollection("files");
         DBObject resQuery = new BasicDBObject("_id", res.getId());
@@ -236,35 +723,297 @@ public class MongoFileService {
             long length,
             String contentType, final char[] password) throws ResourceNotFoundException, IOException {
         
-        final String[] path = resource.split("/");
-        Resource parent = getResourceAt(getRootFolder(username), 
+        String[] path = resource.split("/");
+        Resource parent = getResourceAt(getRootReference(username), 
                 Arrays.copyOfRange(path, 0, path.length - 2));
         
+        String suppliedType = contentType;
+        if (contentType == null) {
+            data = new BufferedInputStream(data, FileTypeDetectionService.PREFIX_LENGTH);
+            contentType = fileTypeDetectionService.detectFileType(
+                    path[path.length - 1], data);
+        }
+        
+        String name = path[path.length - 1];
+        Resource existing = getChild(parent, name);
+        String previousHash = existing == null ? null : getContentHash(existing);
+        
+        // Small files are compared before being encrypted. The length is 0
+        // when the client did not send it.
+        if (previousHash != null && length <= COMPARED_CONTENT_SIZE) {
+            byte[] buffer = new byte[length > 0 ? (int) length + 1 : 8192];
+            int read = 0;
+            while (true) {
+                if (read == buffer.length) {
+                    if (buffer.length > COMPARED_CONTENT_SIZE) {
+                        break;
+                    }
+                    buffer = Arrays.copyOf(buffer, 
+                            Math.min(buffer.length * 2, COMPARED_CONTENT_SIZE + 1));
+                }
+                int count = data.read(buffer, read, buffer.length - read);
+                if (count == -1) {
+                    break;
+                }
+                read += count;
+            }
+            if (read <= COMPARED_CONTENT_SIZE) {
+                data.close();
+                if (previousHash.equals(blobStore.hash(username, password, buffer, 0, read))) {
+                    touch(existing, suppliedType);
+                    return;
+                }
+                data = new ByteArrayInputStream(buffer, 0, read);
+            } else {
+                data = new SequenceInputStream(
+                        new ByteArrayInputStream(buffer, 0, read), data);
+            }
+        }
+        
+        Blob blob = blobStore.write(username, password, data);
+        if (blob.getHash().equals(previousHash)) {
+            // The reference acquired on the current data file is not needed
+            blobStore.release(blob.getFile());
+            touch(existing, suppliedType);
+            return;
+        }
+        
+        DBObject content = new BasicDBObject("file", blob.getFile())
+                .append("hash", blob.getHash());
+        Resource child = setContent(username, parent, name, 
+                content, contentType, blob.getLength());
+        
+        submitIndexing(username, child, password);
+    }
+    
+    /**
+     * Hash of the content of a file, null for files stored before hashes
+     * were recorded.
+     */
+    private String getContentHash(Resource resource) {
+        DBCollection contents = mongo.getDataBase().getCollection("contents");
+        DBObject content = contents.findOne(
+                new BasicDBObject("resource", resource.getId()), 
+                new BasicDBObject("hash", 1));
+        return content == null ? null : (String) content.get("hash");
+    }
+    
+    /**
+     * Records that a file was written with its current content again.
+     * 
+     * @param contentType Content type sent by the client, null if none
+     */
+    private void touch(Resource resource, String contentType) {
+        DBCollection files = mongo.getDataBase().getCollection("files");
+        DBObject update = new BasicDBObject("modificationDate", new Date());
+        if (contentType != null && !contentType.equals(resource.getContentType())) {
+            update.put("contentType", contentType);
+        }
+        files.update(new BasicDBObject("_id", resource.getId()), 
+                new BasicDBObject("$set", update));
+        log.log(Level.FINE, "Content of {0} unchanged", resource.getId());
+    }
+    
+    /**
+     * Copies a file, or a collection and its descendants.
+     * 
+     * Copies share the data of the source files, no data is read nor 
+     * written. The metadata of the copied resources is inserted in batches.
+     * 
+     * @param username Owner of the resources
+     * @param source Resource to copy
+     * @param dest Path of the copy
+     * @param recursive Whether descendants of a collection are copied
+     * @param overwrite Whether an existing resource at dest is replaced
+     * @param password User's password
+     * @return Outcome of the copy
+     * @throws ResourceNotFoundException If the parent of the copy does not 
+     *                                   exist
+     * @throws ResourceAlreadyExistsException If dest exists and overwrite 
+     *                                        is false
+     * @throws TooManyResourcesException If the collection is too large
+     * @throws IllegalArgumentException If the copy would replace the source
+     */
+    public CopyResult copy(final String username, Resource source, String dest, 
+            boolean recursive, boolean overwrite, final char[] password) 
+            throws ResourceNotFoundException, ResourceAlreadyExistsException, 
+            TooManyResourcesException {
+        
         DBCollection files = mongo.getDataBase().getCollection("files");
         DBCollection contents = mongo.getDataBase().getCollection("contents");
         
-        ContentDetector contentDetector = null;
-        if (contentType == null) {
-            PipedInputStream pipeIn = new PipedInputStream();
-            PipedOutputStream pipeOut = new PipedOutputStream(pipeIn);
-            TeeInputStream tee = new TeeInputStream(data, pipeOut, true);
-            contentDetector = new ContentDetector(path[path.length - 1], pipeIn);
-            contentDetector.start();
-            data = tee;
+        String[] path = dest.split("/");
+        Resource root = getRootReference(username);
+        Resource parent = getResourceAt(root, 
+                Arrays.copyOfRange(path, 0, path.length - 1));
+        if (parent == null) {
+            parent = root;
         }
+        String name = path[path.length - 1];
         
-        final File dataFile = createDataFile(data, username, password);
+        Resource existing = getChild(parent, name);
+        if (existing != null) {
+            if (!overwrite) {
+                throw new ResourceAlreadyExistsException();
+            }
+            if (existing.getId().equals(source.getId()) 
+                    || source.getAncestors().contains(existing.getId())) {
+                throw new IllegalArgumentException("Copy would replace its source");
+            }
+        }
         
-        if (contentDetector != null) {
+        // Everything that may fail is checked before the destination is 
+        // replaced
+        ResourceTree tree = getSubtree(source, recursive ? -1 : 0, MAX_COPY_RESOURCES);
+        
+        if (existing != null) {
+            delete(username, new String(password), existing);
+            if (existing.getAncestors().contains(source.getId())) {
+                // The replaced resource was part of the copied tree
+                tree = getSubtree(source, recursive ? -1 : 0, MAX_COPY_RESOURCES);
+            }
+        }
+        
+        // Copies are created parents first, so that their location is known
+        Map<ObjectId, Resource> copies = new HashMap<ObjectId, Resource>();
+        Map<ObjectId, String> relativePaths = new HashMap<ObjectId, String>();
+        List<ObjectId> sourceFiles = new ArrayList<ObjectId>();
+        List<DBObject> batch = new ArrayList<DBObject>(BATCH_SIZE);
+        
+        DBObject rootCopy = copyObject(username, source, parent, name);
+        Resource copiedRoot = buildResource(rootCopy);
+        copies.put(source.getId(), copiedRoot);
+        relativePaths.put(copiedRoot.getId(), "");
+        batch.add(rootCopy);
+        
+        LinkedList<Resource> pending = new LinkedList<Resource>();
+        pending.add(source);
+        while (!pending.isEmpty()) {
+            Resource current = pending.removeFirst();
+            if (!current.isDirectory()) {
+                sourceFiles.add(current.getId());
+                continue;
+            }
+            
+            Resource currentCopy = copies.get(current.getId());
+            for (Resource child : tree.getChildren(current)) {
+                DBObject obj = copyObject(username, child, currentCopy, child.getName());
+                Resource childCopy = buildResource(obj);
+                copies.put(child.getId(), childCopy);
+                relativePaths.put(childCopy.getId(), 
+                        relativePaths.get(currentCopy.getId()) + "/" + child.getName());
+                
+                batch.add(obj);
+                if (batch.size() == BATCH_SIZE) {
+                    files.insert(batch);
+                    batch.clear();
+                }
+                pending.add(child);
+            }
+        }
+        if (!batch.isEmpty()) {
+            files.insert(batch);
+            batch.clear();
+        }
+        
+        // Contents share the source data files, one reference per copy
+        Map<String, List<ObjectId>> references = new HashMap<String, List<ObjectId>>();
+        for (int i = 0; i < sourceFiles.size(); i += BATCH_SIZE) {
+            List<ObjectId> ids = sourceFiles.subList(i, 
+                    Math.min(i + BATCH_SIZE, sourceFiles.size()));
+            DBCursor cursor = contents.find(new BasicDBObject("resource", 
+                    new BasicDBObject("$in", ids)));
+            while (cursor.hasNext()) {
+                DBObject content = cursor.next();
+                ObjectId copyId = copies.get((ObjectId) content.get("resource")).getId();
+                content.removeField("_id");
+                content.put("resource", copyId);
+                batch.add(content);
+                
+                if (content.containsField("file")) {
+                    String file = (String) content.get("file");
+                    List<ObjectId> referencing = references.get(file);
+                    if (referencing == null) {
+                        referencing = new ArrayList<ObjectId>();
+                        references.put(file, referencing);
+                    }
+                    referencing.add(copyId);
+                }
+            }
+            if (!batch.isEmpty()) {
+                contents.insert(batch);
+                batch.clear();
+            }
+        }
+        
+        List<ObjectId> copiedFiles = new ArrayList<ObjectId>();
+        for (ObjectId id : sourceFiles) {
+            copiedFiles.add(copies.get(id).getId());
+        }
+        
+        List<String> failures = new ArrayList<String>();
+        for (Map.Entry<String, List<ObjectId>> e : references.entrySet()) {
             try {
-                contentDetector.join();
-                contentType = contentDetector.getContentType();
-            } catch (InterruptedException ex) {
-                Logger.getLogger(MongoFileService.class.getName()).log(Level.SEVERE, null, ex);
+                blobStore.acquire(username, e.getKey(), e.getValue().size());
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "Could not copy data file " + e.getKey(), ex);
+                
+                DBObject failed = new BasicDBObject("$in", e.getValue());
+                contents.remove(new BasicDBObject("resource", failed));
+                files.remove(new BasicDBObject("_id", failed));
+                copiedFiles.removeAll(e.getValue());
+                for (ObjectId id : e.getValue()) {
+                    failures.add(relativePaths.get(id));
+                }
             }
         }
         
-        Resource child = getChild(parent, path[path.length - 1]);
+        files.update(new BasicDBObject("_id", parent.getId()), 
+                new BasicDBObject("$set", 
+                new BasicDBObject("modificationDate", new Date())));
+        treeCache.putChild(username, parent.getId(), name, copiedRoot.getId());
+        
+        if (!copiedFiles.isEmpty()) {
+            submitIndexing(username, copiedRoot.getId(), copiedFiles, password);
+        }
+        
+        return new CopyResult(existing != null, failures);
+    }
+    
+    private DBObject copyObject(String username, Resource source, Resource parent, String name) {
+        DBObject obj = new BasicDBObject();
+        obj.put("_id", new ObjectId());
+        obj.put("user", username);
+        obj.put("name", name);
+        obj.put("parent", parent.getId());
+        obj.put("type", source.isDirectory() ? 
+                Resource.ResourceType.FOLDER.toString() : Resource.ResourceType.FILE.toString());
+        obj.put("creationDate", new Date());
+        obj.put("modificationDate", new Date());
+        if (!source.isDirectory()) {
+            obj.put("contentType", source.getContentType());
+            obj.put("contentLength", source.getContentLength());
+        }
+        setLocation(obj, parent, name);
+        return obj;
+    }
+    
+    /**
+     * Creates or overwrites a file with the given content.
+     * 
+     * The reference held by the previous content of an overwritten file is 
+     * released.
+     * 
+     * @param content Content fields, either file and hash or binary
+     * @return Created or updated file
+     */
+    private Resource setContent(String username, Resource parent, String name,
+            DBObject content, String contentType, long length) {
+        
+        DBCollection files = mongo.getDataBase().getCollection("files");
+        DBCollection contents = mongo.getDataBase().getCollection("contents");
+        
+        Resource child = getChild(parent, name);
         if (child != null) {
             DBObject filter = new BasicDBObject();
             filter.put("_id", child.getId());
@@ -273,27 +1022,29 @@ public class MongoFileService {
             update.put("contentType", contentType);
             files.update(filter, new BasicDBObject("$set", update));
             
-            contents.update(new BasicDBObject("resource", child.getId()), 
-                    new BasicDBObject("$set", new BasicDBObject("file", dataFile.getAbsolutePath())));
+            content.put("resource", child.getId());
+            DBObject previous = contents.findAndModify(
+                    new BasicDBObject("resource", child.getId()), content);
+            if (previous != null && previous.containsField("file")) {
+                blobStore.release((String) previous.get("file"));
+            }
         } else {
             DBObject childObj = new BasicDBObject();
             ObjectId objId = new ObjectId();
             childObj.put("_id", objId);
             childObj.put("user", username);
-            childObj.put("name", path[path.length - 1]);
+            childObj.put("name", name);
             childObj.put("parent", parent.getId());
             childObj.put("type", Resource.ResourceType.FILE.toString());
             childObj.put("creationDate", new Date());
             childObj.put("modificationDate", new Date());
             childObj.put("contentType", contentType);
             childObj.put("contentLength", length);
+            setLocation(childObj, parent, name);
             
             files.insert(childObj);
             
-            DBObject content = new BasicDBObject();
             content.put("resource", objId);
-            content.put("file", dataFile.getAbsolutePath());
-            
             contents.insert(content);
         
             files.update(new BasicDBObject("_id", parent.getId()), 
@@ -301,31 +1052,76 @@ public class MongoFileService {
                     new BasicDBObject("modificationDate", new Date())));
             
             child = buildResource(childObj);
+            treeCache.putChild(username, parent.getId(), child.getName(), child.getId());
         }
         
-        final String fContentType = contentType;
-        final Resource fChild = child;
-        new Thread() {
-            public void run() {
-                try {
-                    Map<String, String> metadata = extractionService.extractContent(path[path.length - 1], 
-                            readFile(dataFile, username, password),
-                            fContentType);
-
-                    metadata.put("name", path[path.length - 1]);
-
-                    indexService.remove(username, new String(password), fChild.getId().toString());
-                    indexService.index(username, new String(password), fChild.getId().toString(), metadata);
-                } catch (Exception ex) {
-                    Logger.getLogger(MongoFileService.class.getName()).log(Level.SEVERE, "Index failed for " + path[path.length - 1], ex);
+        return child;
+    }
+    
+    private void submitIndexing(final String username, Resource resource, final char[] password) {
+        // Successive writes of a file are indexed once
+        indexingQueue.submit(new IndexJob(username, resource.getId().toString(), true) {
+            @Override
+            public void execute() throws Exception {
+                indexResource(username, new ObjectId(getResourceId()), password);
+            }
+        });
+    }
+    
+    /**
+     * Indexes several files in a single job, keyed by their common ancestor.
+     */
+    private void submitIndexing(final String username, ObjectId ancestor, 
+            final List<ObjectId> ids, final char[] password) {
+        
+        indexingQueue.submit(new IndexJob(username, ancestor.toString()) {
+            
+            /*
+             * Retries resume from the file that failed
+             */
+            private int next;
+            
+            @Override
+            public void execute() throws Exception {
+                for (; next < ids.size(); next++) {
+                    ObjectId id = ids.get(next);
+                    try {
+                        indexResource(username, id, password);
+                    } catch (ContentExtractionException ex) {
+                        // Retrying would not make the file parseable
+                        log.log(Level.WARNING, "Could not extract the content of " + id, ex);
+                    }
                 }
             }
-        }.start();
+            
+        });
+    }
+    
+    private void indexResource(String username, ObjectId id, char[] password) throws Exception {
+        // The resource may have been changed or removed in between
+        Resource res = getResource(id.toString());
+        if (res == null) {
+            return;
+        }
+
+        ExtractedContent content;
+        InputStream in = get(username, res, password);
+        try {
+            content = extractionService.extractContent(res.getName(), 
+                    in, res.getContentType());
+        } finally {
+            in.close();
+        }
+
+        content.getMetadata().put("name", res.getName());
+
+        indexService.remove(username, new String(password), id.toString());
+        indexService.index(username, new String(password), id.toString(), content);
     }
     
     public void move(String username, Resource source, String dest) throws ResourceNotFoundException {
         String[] path = dest.split("/");
-        Resource parent = getRootFolder(username);
+        Resource parent = getRootReference(username);
         for (int i = 0; i < path.length - 1; i++) {
             parent = getChild(parent, path[i]);
             if (parent == null) {
@@ -349,12 +1145,82 @@ public class MongoFileService {
         
         files.update(filter, update);
         
+        updateLocation(current, parent, path[path.length - 1]);
+        
         files.update(new BasicDBObject("_id", parent.getId()), 
                 new BasicDBObject("$set", 
                 new BasicDBObject("modificationDate", new Date())));
+        
+        treeCache.removeChild(username, (ObjectId) current.get("parent"), 
+                (String) current.get("name"));
+        treeCache.putChild(username, parent.getId(), 
+                path[path.length - 1], source.getId());
+    }
+    
+    /**
+     * Updates the materialized path of a moved resource and all its
+     * descendants.
+     */
+    private void updateLocation(DBObject current, Resource parent, String name) {
+        DBCollection files = mongo.getDataBase().getCollection("files");
+        
+        ObjectId id = (ObjectId) current.get("_id");
+        String oldPath = (String) current.get("path");
+        if (oldPath == null) {
+            return;
+        }
+        
+        if (parent.getPath() == null) {
+            // The old location would still be resolved, lookups must fall
+            // back to the parent walk until the migration reaches the 
+            // new parent
+            DBObject unset = new BasicDBObject("$unset", 
+                    new BasicDBObject("path", 1).append("ancestors", 1));
+            files.update(new BasicDBObject("_id", id), unset);
+            files.update(new BasicDBObject("ancestors", id), unset, false, true);
+            return;
+        }
+        
+        BasicDBObject moved = new BasicDBObject();
+        setLocation(moved, parent, name);
+        files.update(new BasicDBObject("_id", id), new BasicDBObject("$set", moved));
+        
+        String newPath = (String) moved.get("path");
+        List<ObjectId> newAncestors = toIdList(moved.get("ancestors"));
+        
+        DBCursor descendants = files.find(new BasicDBObject("ancestors", id)
+                .append("deleted", new BasicDBObject("$ne", true)),
+                new BasicDBObject("path", 1).append("ancestors", 1));
+        while (descendants.hasNext()) {
+            DBObject desc = descendants.next();
+            List<ObjectId> ancestors = toIdList(desc.get("ancestors"));
+            
+            List<ObjectId> updated = new ArrayList<ObjectId>(newAncestors);
+            updated.addAll(ancestors.subList(ancestors.indexOf(id), ancestors.size()));
+            
+            DBObject set = new BasicDBObject("ancestors", updated)
+                    .append("path", newPath + ((String) desc.get("path")).substring(oldPath.length()));
+            files.update(new BasicDBObject("_id", desc.get("_id")), 
+                    new BasicDBObject("$set", set));
+        }
     }
     
     public InputStream get(String username, Resource resource, char[] password) throws IOException {
+        return get(username, resource, password, 0);
+    }
+    
+    /**
+     * Reads the content of a file, starting at a given offset.
+     * 
+     * Only the data located after the offset is decrypted.
+     * 
+     * @param username Owner of the file
+     * @param resource File to read
+     * @param password User's password
+     * @param offset Position of the first byte to read
+     * @return Decrypted content of the file, starting at offset
+     */
+    public InputStream get(String username, Resource resource, char[] password, long offset) throws IOException {
         DBCollection col = mongo.getDataBase().getCollection("contents");
         
         DBObject filter = new BasicDBObject();
@@ -364,36 +1230,63 @@ public class MongoFileService {
         if (result.containsField("file")) {
             String fileName = (String) result.get("file");
             File dataFile = new File(fileName);
-            return readFile(dataFile, username, password);
+            return readFile(dataFile, username, password, offset);
         } else {
             byte[] binary = (byte[]) result.get("binary");
-            return new ByteArrayInputStream(binary);
+            InputStream in = new ByteArrayInputStream(binary);
+            in.skip(offset);
+            return in;
         }
     }
     
-    public void delete(String username, String password, Resource resource) {
+    /**
+     * Deletes a resource and all its descendants.
+     * 
+     * The subtree is only marked as deleted, which hides it at once. Its 
+     * index documents, metadata and data files are removed in the 
+     * background.
+     */
+    public void delete(final String username, final String password, Resource resource) {
         DBCollection files = mongo.getDataBase().getCollection("files");
-        DBCollection contents = mongo.getDataBase().getCollection("contents");
-        
-        for (Resource child : getChildren(resource)) {
-            delete(username, password, child);
-        }
         
         DBObject filter = new BasicDBObject("_id", resource.getId());
         
-        DBObject current = files.findOne(filter);
+        // Detaching the root from its parent hides the subtree from 
+        // resources lookups, removing paths hides it from path lookups
+        DBObject current = files.findAndModify(filter, new BasicDBObject()
+                .append("$set", new BasicDBObject("deleted", true)
+                    .append("deletionDate", new Date()))
+                .append("$unset", new BasicDBObject("parent", 1).append("path", 1)));
+        if (current == null) {
+            return;
+        }
+        files.update(new BasicDBObject("ancestors", resource.getId()), 
+                new BasicDBObject()
+                    .append("$set", new BasicDBObject("deleted", true))
+                    .append("$unset", new BasicDBObject("path", 1)), 
+                false, true);
+        
         files.update(new BasicDBObject("_id", (ObjectId) current.get("parent")), 
                 new BasicDBObject("$set", 
                 new BasicDBObject("modificationDate", new Date())));
         
-        files.remove(filter);
-        contents.remove(new BasicDBObject("resource", resource.getId()));
+        treeCache.removeChild(username, (ObjectId) current.get("parent"), 
+                (String) current.get("name"));
         
-        try {
-            indexService.remove(username, password, resource.getId().toString());
-        } catch (IndexException ex) {
-            Logger.getLogger(MongoFileService.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        indexingQueue.submit(new IndexJob(username, resource.getId().toString()) {
+            @Override
+            public void execute() throws Exception {
+                List<ObjectId> ids = purger.collect(new ObjectId(getResourceId()));
+                
+                List<String> documents = new ArrayList<String>(ids.size());
+                for (ObjectId id : ids) {
+                    documents.add(id.toString());
+                }
+                indexService.remove(username, password, documents);
+                
+                purger.purge(ids);
+            }
+        });
     }
     
     protected Resource buildResource(DBObject obj) {
@@ -406,102 +1299,59 @@ public class MongoFileService {
                 (String) obj.get("name"),
                 (Date) obj.get("creationDate"),
                 (Date) obj.get("modificationDate"));
+        childRes.setUser((String) obj.get("user"));
+        childRes.setParent((ObjectId) obj.get("parent"));
+        childRes.setPath((String) obj.get("path"));
+        if (obj.containsField("ancestors")) {
+            childRes.setAncestors(toIdList(obj.get("ancestors")));
+        }
         
         if ("FILE".equals(obj.get("type"))) {
             childRes.setType(Resource.ResourceType.FILE);
-            childRes.setContentLength(((Number) obj.get("contentLength")).intValue()); // TODO: move to longValue
+            if (obj.containsField("contentLength")) {
+                childRes.setContentLength(((Number) obj.get("contentLength")).longValue());
+            }
             childRes.setContentType((String) obj.get("contentType"));
         }
         
         return childRes;
     }
     
-    protected InputStream readFile(File file, String username, char[] password) throws IOException {
-        try {
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            InputStream fIn = new BufferedInputStream(new FileInputStream(file));
-            
-            Cipher cipher = Cipher.getInstance("Blowfish");
-            cipher.init(Cipher.DECRYPT_MODE, getSecretKey(username, password));
-            
-            CipherInputStream in = new CipherInputStream(fIn, cipher);
-            
-            return in;
-        } catch (Exception ex) {
-            // TODO: better exception handling
-            Logger.getAnonymousLogger().log(Level.SEVERE, "ERROR", ex);
-            throw new RuntimeException(ex);
+    protected List<ObjectId> toIdList(Object list) {
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        for (Object id : (List<?>) list) {
+            ids.add((ObjectId) id);
         }
+        return ids;
+    }
+    
+    protected InputStream readFile(File file, String username, char[] password) throws IOException {
+        return readFile(file, username, password, 0);
     }
     
-    protected File createDataFile(InputStream data, String username, char[] password) throws IOException {
+    /*
+     * Files are encrypted in ECB mode, each cipher block can be decrypted 
+     * independently. Decryption can thus start at the cipher block holding 
+     * the offset rather than at the beginning of the file.
+     */
+    protected InputStream readFile(File file, String username, char[] password, long offset) throws IOException {
         try {
-            String fileName = UUID.randomUUID().toString();
-            
-            File folder = new File(storageFolder, username);
-            folder = new File(folder, fileName.substring(0, 2));
-            folder.mkdirs();
-                    
-            File file = new File(folder, fileName);
-            
             Cipher cipher = Cipher.getInstance("Blowfish");
-            cipher.init(Cipher.ENCRYPT_MODE, getSecretKey(username, password));
+            cipher.init(Cipher.DECRYPT_MODE, keyService.getSecretKey(username, password));
             
-            OutputStream fOut = new BufferedOutputStream(new FileOutputStream(file));
-            CipherOutputStream out = new CipherOutputStream(fOut, cipher);
+            int blockSize = cipher.getBlockSize();
+            long blockStart = offset - offset % blockSize;
             
-            InputStream in = new BufferedInputStream(data);
-            byte[] buffer = new byte[2048];
-            int readed;
-            while ((readed = in.read(buffer)) != -1) {
-                out.write(buffer, 0, readed);
-            }
-            in.close();
+            FileInputStream fileIn = new FileInputStream(file);
+            fileIn.getChannel().position(blockStart);
+            InputStream fIn = new BufferedInputStream(fileIn);
             
-            out.flush();
-            out.close();
-            fOut.flush();
-            fOut.close();
+            CipherInputStream in = new CipherInputStream(fIn, cipher);
+            IOUtils.skipFully(in, offset - blockStart);
             
-            return file;
-        } catch (Exception ex) {
-            // TODO: better exception handling
-            Logger.getAnonymousLogger().log(Level.SEVERE, "ERROR", ex);
-            throw new RuntimeException(ex);
-        } finally {
-            data.close();
-        }
-    }
-    
-    protected SecretKey getSecretKey(String username, char[] password) {
-        try {
-            KeyStore store = getKeyStore(username, password);
-            SecretKeyEntry entry = (SecretKeyEntry) store.getEntry(username, new KeyStore.PasswordProtection(password));
-            return entry.getSecretKey();
-        } catch (Exception ex) {
-            // TODO: better exception handling
-            throw new RuntimeException(ex);
-        }
-    }
-    
-    protected KeyStore getKeyStore(String username, char[] password) {
-        try {
-            File keyStoreFile = new File(secretsFolder, username + ".jks");
-            KeyStore keyStore = KeyStore.getInstance("JCEKS");
-            if (keyStoreFile.exists()) {
-                keyStore.load(new FileInputStream(keyStoreFile), password);
-                return keyStore;
-            } else {
-                KeyGenerator gen = KeyGenerator.getInstance("Blowfish");
-                SecretKey key = gen.generateKey();
-                
-                keyStore.load(null, password);
-                keyStore.setEntry(username, new SecretKeyEntry(key), new KeyStore.PasswordProtection(password));
-                
-                keyStore.store(new FileOutputStream(keyStoreFile), password);
-                
-                return keyStore;
-            }
+            return in;
+        } catch (IOException ex) {
+            throw ex;
         } catch (Exception ex) {
             // TODO: better exception handling
             Logger.getAnonymousLogger().log(Level.SEVERE, "ERROR", ex);
@@ -509,34 +1359,4 @@ public class MongoFileService {
         }
     }
     
-    private class ContentDetector extends Thread {
-
-        private String fileName;
-        
-        private InputStream in;
-        
-        private String contentType;
-
-        public ContentDetector(String fileName, InputStream in) {
-            this.fileName = fileName;
-            this.in = in;
-        }
-
-        @Override
-        public void run() {
-            contentType = fileTypeDetectionService.detectFileType(fileName, in);
-            byte[] buffer = new byte[2048];
-            try {
-                // Discard bytes in the stream that were not consumed by Tika
-                while (in.read(buffer) != -1);
-            } catch (IOException ex) {
-                Logger.getLogger(MongoFileService.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }
-
-        public String getContentType() {
-            return contentType;
-        }
-    }
-    
 }
@@ -0,0 +1,137 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.dao;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.ejb.DependsOn;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import org.bson.types.ObjectId;
+
+/**
+ * Maintains the indexes of the files collection and backfills the
+ * materialized path and ancestors of documents created before they were
+ * introduced.
+ *
+ * @author Vivien Barousse
+ */
+@Singleton
+@Startup
+@DependsOn("MongoService")
+public class PathMigrationService {
+    
+    private static final Logger log = Logger.getLogger(PathMigrationService.class.getName());
+    
+    @EJB
+    private MongoService mongo;
+    
+    @PostConstruct
+    protected void migrate() {
+        DBCollection files = mongo.getDataBase().getCollection("files");
+        
+        files.ensureIndex(new BasicDBObject("user", 1).append("path", 1));
+        files.ensureIndex(new BasicDBObject("ancestors", 1));
+        files.ensureIndex(new BasicDBObject("parent", 1).append("name", 1));
+        
+        // Deleted resources have no path until they are purged
+        DBObject missing = new BasicDBObject("path", 
+                new BasicDBObject("$exists", false));
+        missing.put("deleted", new BasicDBObject("$ne", true));
+        if (files.findOne(missing) == null) {
+            return;
+        }
+        
+        log.info("Backfilling materialized paths in the files collection");
+        
+        int updated = 0;
+        DBCursor roots = files.find(new BasicDBObject("root", true));
+        while (roots.hasNext()) {
+            updated += migrateTree(files, roots.next());
+        }
+        
+        log.info("Materialized paths backfilled for " + updated + " documents");
+    }
+    
+    private int migrateTree(DBCollection files, DBObject root) {
+        int updated = 0;
+        
+        if (!root.containsField("path")) {
+            files.update(new BasicDBObject("_id", root.get("_id")), 
+                    new BasicDBObject("$set", new BasicDBObject("path", "")
+                    .append("ancestors", new ArrayList<ObjectId>())));
+            updated++;
+        }
+        
+        LinkedList<Folder> queue = new LinkedList<Folder>();
+        queue.add(new Folder((ObjectId) root.get("_id"), "", 
+                new ArrayList<ObjectId>()));
+        
+        while (!queue.isEmpty()) {
+            Folder folder = queue.removeFirst();
+            
+            List<ObjectId> ancestors = new ArrayList<ObjectId>(folder.ancestors);
+            ancestors.add(folder.id);
+            
+            DBCursor children = files.find(new BasicDBObject("parent", folder.id),
+                    new BasicDBObject("name", 1).append("type", 1).append("path", 1));
+            while (children.hasNext()) {
+                DBObject child = children.next();
+                ObjectId id = (ObjectId) child.get("_id");
+                String path = folder.path + "/" + child.get("name");
+                
+                if (!path.equals(child.get("path"))) {
+                    files.update(new BasicDBObject("_id", id), 
+                            new BasicDBObject("$set", new BasicDBObject("path", path)
+                            .append("ancestors", ancestors)));
+                    updated++;
+                }
+                
+                if (!"FILE".equals(child.get("type"))) {
+                    queue.add(new Folder(id, path, ancestors));
+                }
+            }
+        }
+        
+        return updated;
+    }
+    
+    private static class Folder {
+        
+        private ObjectId id;
+        
+        private String path;
+        
+        private List<ObjectId> ancestors;
+
+        public Folder(ObjectId id, String path, List<ObjectId> ancestors) {
+            this.id = id;
+            this.path = path;
+            this.ancestors = ancestors;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,62 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.dao;
+
+import com.aperigeek.dropvault.web.beans.Resource;
+import com.mongodb.DBCursor;
+import java.util.Iterator;
+
+/**
+ * Iterates over resources as they are returned by the database, without
+ * loading them all in memory.
+ * 
+ * Cursors must be closed once they are no longer used.
+ *
+ * @author Vivien Barousse
+ */
+public class ResourceCursor implements Iterator<Resource> {
+    
+    private DBCursor cursor;
+    
+    private MongoFileService fileService;
+
+    ResourceCursor(DBCursor cursor, MongoFileService fileService) {
+        this.cursor = cursor;
+        this.fileService = fileService;
+    }
+
+    public boolean hasNext() {
+        return cursor.hasNext();
+    }
+
+    public Resource next() {
+        return fileService.buildResource(cursor.next());
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+    
+    void limit(int limit) {
+        cursor.limit(limit);
+    }
+    
+    public void close() {
+        cursor.close();
+    }
+    
+}
@@ -0,0 +1,210 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.dao;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.DependsOn;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import org.bson.types.ObjectId;
+
+/**
+ * Removes deleted resources from the database and releases their data 
+ * files.
+ * 
+ * Deleting a resource only marks its subtree as deleted, the actual removal
+ * is done by this purger, in batches. Deleted subtrees are normally purged
+ * right after their index documents have been removed. Subtrees left behind, 
+ * for instance by a restart, are purged periodically.
+ *
+ * @author Vivien Barousse
+ */
+@Singleton
+@Startup
+@DependsOn({"MongoService", "BlobStore"})
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class ResourcePurger {
+    
+    private static final Logger log = Logger.getLogger(ResourcePurger.class.getName());
+    
+    // TODO: export to configuration file
+    private static final long PURGE_INTERVAL = 60 * 60 * 1000; // 1 hour
+    
+    // TODO: export to configuration file
+    private static final long PURGE_DELAY = 60 * 60 * 1000; // 1 hour
+    
+    private static final int BATCH_SIZE = 1000;
+    
+    private final AtomicLong purgedResources = new AtomicLong();
+    
+    private final AtomicLong purgedTrees = new AtomicLong();
+    
+    @EJB
+    private MongoService mongo;
+    
+    @EJB
+    private BlobStore blobStore;
+    
+    private ScheduledExecutorService scheduler;
+    
+    @PostConstruct
+    protected void start() {
+        DBCollection files = mongo.getDataBase().getCollection("files");
+        files.ensureIndex(new BasicDBObject("deletionDate", 1), 
+                new BasicDBObject("sparse", true));
+        
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "dropvault-purger");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    purgeExpired();
+                } catch (RuntimeException ex) {
+                    log.log(Level.SEVERE, "Purge of deleted resources failed", ex);
+                }
+            }
+        }, PURGE_INTERVAL, PURGE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    protected void stop() {
+        scheduler.shutdownNow();
+    }
+    
+    /**
+     * Lists the identifiers of a deleted resource and all its descendants.
+     */
+    public List<ObjectId> collect(ObjectId root) {
+        DBCollection files = mongo.getDataBase().getCollection("files");
+        DBObject keys = new BasicDBObject("_id", 1).append("type", 1);
+        
+        List<ObjectId> ids = new ArrayList<ObjectId>();
+        ids.add(root);
+        
+        // Descendants keep their parent, whether they have a path or not
+        List<ObjectId> level = Arrays.asList(root);
+        while (!level.isEmpty()) {
+            List<ObjectId> next = new ArrayList<ObjectId>();
+            for (int i = 0; i < level.size(); i += BATCH_SIZE) {
+                List<ObjectId> batch = level.subList(i, Math.min(i + BATCH_SIZE, level.size()));
+                DBCursor cursor = files.find(new BasicDBObject("parent", 
+                        new BasicDBObject("$in", batch)), keys);
+                while (cursor.hasNext()) {
+                    DBObject obj = cursor.next();
+                    ObjectId id = (ObjectId) obj.get("_id");
+                    ids.add(id);
+                    if (!"FILE".equals(obj.get("type"))) {
+                        next.add(id);
+                    }
+                }
+            }
+            level = next;
+        }
+        
+        return ids;
+    }
+    
+    /**
+     * Removes resources and their contents, and releases their data files.
+     * 
+     * @param ids Resources to remove, as returned by {@link #collect(ObjectId)}
+     */
+    public void purge(List<ObjectId> ids) {
+        DBCollection files = mongo.getDataBase().getCollection("files");
+        DBCollection contents = mongo.getDataBase().getCollection("contents");
+        
+        // Deepest resources first, the root is only removed once everything
+        // else has been, so that an interrupted purge can be resumed
+        for (int end = ids.size(); end > 0; end -= BATCH_SIZE) {
+            DBObject batch = new BasicDBObject("$in", 
+                    ids.subList(Math.max(0, end - BATCH_SIZE), end));
+            
+            // Contents are claimed one at a time, so that a subtree purged
+            // concurrently by a job and by purgeExpired() releases each
+            // data file reference once
+            DBObject content;
+            while ((content = contents.findAndModify(
+                    new BasicDBObject("resource", batch), 
+                    new BasicDBObject("file", 1), 
+                    null, true, null, false, false)) != null) {
+                String file = (String) content.get("file");
+                if (file != null) {
+                    blobStore.release(file);
+                }
+            }
+            
+            files.remove(new BasicDBObject("_id", batch));
+        }
+        
+        purgedResources.addAndGet(ids.size());
+        purgedTrees.incrementAndGet();
+    }
+    
+    /**
+     * Purges the subtrees deleted for longer than the purge delay.
+     */
+    protected void purgeExpired() {
+        DBCollection files = mongo.getDataBase().getCollection("files");
+        
+        Date limit = new Date(System.currentTimeMillis() - PURGE_DELAY);
+        DBCursor cursor = files.find(new BasicDBObject("deletionDate", 
+                new BasicDBObject("$lt", limit)), new BasicDBObject("_id", 1));
+        
+        int count = 0;
+        while (cursor.hasNext()) {
+            purge(collect((ObjectId) cursor.next().get("_id")));
+            count++;
+        }
+        
+        if (count > 0) {
+            log.log(Level.INFO, "Purged {0} deleted subtrees", count);
+        }
+    }
+
+    public long getPurgedResources() {
+        return purgedResources.get();
+    }
+
+    public long getPurgedTrees() {
+        return purgedTrees.get();
+    }
+    
+}
@@ -0,0 +1,179 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.dao;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import org.bson.types.ObjectId;
+
+/**
+ * In-memory cache of the users' directory trees.
+ * 
+ * The cache only holds identifiers: the id of each user's root folder and,
+ * for every known folder, the ids of its children indexed by name. It is
+ * used to resolve paths without issuing one query per path segment.
+ * 
+ * Both the number of users and the number of entries per user are bounded,
+ * least recently used entries being evicted first.
+ *
+ * @author Vivien Barousse
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class ResourceTreeCache {
+    
+    // TODO: export to configuration file
+    private static final int MAX_USERS = 256;
+    
+    // TODO: export to configuration file
+    private static final int MAX_ENTRIES_PER_USER = 10000;
+    
+    private final AtomicLong hits = new AtomicLong();
+    
+    private final AtomicLong misses = new AtomicLong();
+    
+    private final AtomicLong evictions = new AtomicLong();
+    
+    private final Map<String, UserTree> trees = 
+            new LinkedHashMap<String, UserTree>(16, 0.75f, true) {
+        
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, UserTree> eldest) {
+            if (size() > MAX_USERS) {
+                evictions.addAndGet(eldest.getValue().size() + 1);
+                return true;
+            }
+            return false;
+        }
+    };
+    
+    public ObjectId getRootId(String username) {
+        synchronized (trees) {
+            UserTree tree = trees.get(username);
+            ObjectId id = tree == null ? null : tree.rootId;
+            count(id);
+            return id;
+        }
+    }
+    
+    public void putRootId(String username, ObjectId id) {
+        synchronized (trees) {
+            getTree(username).rootId = id;
+        }
+    }
+    
+    public ObjectId getChildId(String username, ObjectId parent, String name) {
+        synchronized (trees) {
+            UserTree tree = trees.get(username);
+            ObjectId id = tree == null ? null : tree.get(key(parent, name));
+            count(id);
+            return id;
+        }
+    }
+    
+    public void putChild(String username, ObjectId parent, String name, ObjectId id) {
+        synchronized (trees) {
+            getTree(username).put(key(parent, name), id);
+        }
+    }
+    
+    public void removeChild(String username, ObjectId parent, String name) {
+        synchronized (trees) {
+            UserTree tree = trees.get(username);
+            if (tree != null) {
+                tree.remove(key(parent, name));
+            }
+        }
+    }
+    
+    public void invalidate(String username) {
+        synchronized (trees) {
+            trees.remove(username);
+        }
+    }
+    
+    public long getHits() {
+        return hits.get();
+    }
+    
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    public long getEvictions() {
+        return evictions.get();
+    }
+    
+    public int getSize() {
+        synchronized (trees) {
+            int size = 0;
+            for (UserTree tree : trees.values()) {
+                size += tree.size();
+            }
+            return size;
+        }
+    }
+    
+    private UserTree getTree(String username) {
+        UserTree tree = trees.get(username);
+        if (tree == null) {
+            tree = new UserTree();
+            trees.put(username, tree);
+        }
+        return tree;
+    }
+    
+    private void count(ObjectId id) {
+        if (id == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+    }
+    
+    private static String key(ObjectId parent, String name) {
+        return parent.toString() + "/" + name;
+    }
+    
+    private class UserTree extends LinkedHashMap<String, ObjectId> {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private ObjectId rootId;
+
+        public UserTree() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ObjectId> eldest) {
+            if (size() > MAX_ENTRIES_PER_USER) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+        
+    }
+    
+}
@@ -16,7 +16,6 @@
  */
 package com.aperigeek.dropvault.web.rest;
 
-import com.aperigeek.dropvault.web.beans.Resource;
 import com.aperigeek.dropvault.web.beans.User;
 import com.aperigeek.dropvault.web.dao.MongoFileService;
 import com.aperigeek.dropvault.web.dao.user.InvalidPasswordException;
@@ -25,14 +24,17 @@ import com.aperigeek.dropvault.web.rest.webdav.ProtocolException;
 import com.aperigeek.dropvault.web.service.AuthenticationService;
 import com.aperigeek.dropvault.web.service.IndexException;
 import com.aperigeek.dropvault.web.service.IndexService;
+import com.aperigeek.dropvault.web.service.SearchResults;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
@@ -41,6 +43,7 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriBuilder;
 import org.json.JSONArray;
+import org.json.JSONObject;
 
 /**
  *
@@ -52,6 +55,12 @@ public class SearchService {
     
     public static final String DAV_BASE = "/";
     
+    // TODO: export to configuration file
+    private static final int MAX_LIMIT = 100;
+    
+    // TODO: export to configuration file
+    private static final int MAX_RESULT_WINDOW = 1000;
+    
     @EJB
     private IndexService indexService;
     
@@ -64,7 +73,15 @@ public class SearchService {
     @GET
     @Produces("application/json")
     public Response query(@HeaderParam("Authorization") String authorization,
-            @QueryParam("q") String query) throws IndexException {
+            @QueryParam("q") String query,
+            @QueryParam("offset") @DefaultValue("0") int offset,
+            @QueryParam("limit") @DefaultValue("10") int limit,
+            @QueryParam("after") String after) throws IndexException {
+        
+        if (offset < 0 || limit <= 0 || limit > MAX_LIMIT 
+                || offset + limit > MAX_RESULT_WINDOW) {
+            return Response.status(400).build();
+        }
         
         User user;
         try {
@@ -81,30 +98,48 @@ public class SearchService {
         
         URI userUri = URI.create(DAV_BASE);
         
-        List<String> uris = new ArrayList<String>();
-        List<String> ids = indexService.search(user.getUsername(), user.getPassword(), query);
-        for (String id : ids) {
-            Resource res = fileService.getResource(id);
-            Stack<Resource> path = new Stack<Resource>();
-            Resource parent = res;
-            while (parent != null) {
-                path.push(parent);
-                parent = fileService.getParent(parent);
+        SearchResults results;
+        try {
+            results = indexService.search(user.getUsername(), user.getPassword(), 
+                    query, offset, limit, after);
+        } catch (IllegalArgumentException ex) {
+            return Response.status(400).build();
+        }
+        
+        List<String> ids = new ArrayList<String>();
+        for (SearchResults.Hit hit : results.getHits()) {
+            ids.add(hit.getId());
+        }
+        Map<String, String> paths = fileService.getPaths(user.getUsername(), ids);
+        
+        List<Map<String, Object>> hits = new ArrayList<Map<String, Object>>();
+        for (SearchResults.Hit hit : results.getHits()) {
+            String path = paths.get(hit.getId());
+            if (path == null) {
+                continue;
             }
             
-            // Remove the user's root folder, we don't want it in the path
-            path.pop();
-            
             UriBuilder builder = UriBuilder.fromUri(userUri);
-            while (!path.empty()) {
-                Resource e = path.pop();
-                builder.path(e.getName());
+            if (path.length() > 0) {
+                for (String name : path.substring(1).split("/")) {
+                    builder.path(name);
+                }
             }
-            uris.add(builder.build().toString());
+            
+            Map<String, Object> json = new LinkedHashMap<String, Object>();
+            json.put("uri", builder.build().toString());
+            json.put("score", hit.getScore());
+            hits.add(json);
+        }
+        
+        Map<String, Object> json = new LinkedHashMap<String, Object>();
+        json.put("total", results.getTotalHits());
+        json.put("results", new JSONArray(hits));
+        if (results.getNextCursor() != null) {
+            json.put("next", results.getNextCursor());
         }
         
-        JSONArray array = new JSONArray(uris);
-        return Response.ok(array.toString()).build();
+        return Response.ok(new JSONObject(json).toString()).build();
     }
     
 }
@@ -17,19 +17,31 @@
 package com.aperigeek.dropvault.web.rest.webdav;
 
 import com.aperigeek.dropvault.web.beans.Resource;
+import com.aperigeek.dropvault.web.beans.ResourcePage;
+import com.aperigeek.dropvault.web.beans.ResourceTree;
 import com.aperigeek.dropvault.web.beans.User;
 import com.aperigeek.dropvault.web.dao.MongoFileService;
+import com.aperigeek.dropvault.web.dao.ResourceCursor;
 import com.aperigeek.dropvault.web.dao.ResourceNotFoundException;
+import com.aperigeek.dropvault.web.dao.TooManyResourcesException;
 import com.aperigeek.dropvault.web.dao.user.InvalidPasswordException;
 import com.aperigeek.dropvault.web.dao.user.UsersDAO;
 import com.aperigeek.dropvault.web.service.AuthenticationService;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import javax.ejb.EJB;
 import javax.ws.rs.OPTIONS;
 import javax.ws.rs.core.Response.StatusType;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import net.java.dev.webdav.jaxrs.methods.LOCK;
 import net.java.dev.webdav.jaxrs.methods.UNLOCK;
 import net.java.dev.webdav.jaxrs.xml.elements.HRef;
@@ -38,12 +50,8 @@ import net.java.dev.webdav.jaxrs.xml.elements.Prop;
 import net.java.dev.webdav.jaxrs.xml.elements.PropStat;
 import net.java.dev.webdav.jaxrs.xml.elements.Response;
 import net.java.dev.webdav.jaxrs.xml.elements.Status;
-import net.java.dev.webdav.jaxrs.xml.properties.CreationDate;
-import net.java.dev.webdav.jaxrs.xml.properties.DisplayName;
-import net.java.dev.webdav.jaxrs.xml.properties.GetContentLength;
-import net.java.dev.webdav.jaxrs.xml.properties.GetContentType;
-import net.java.dev.webdav.jaxrs.xml.properties.GetLastModified;
-import net.java.dev.webdav.jaxrs.xml.properties.ResourceType;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
 /**
  *
@@ -51,13 +59,46 @@ import net.java.dev.webdav.jaxrs.xml.properties.ResourceType;
  */
 public abstract class AbstractResourceRestService {
     
+    // TODO: export to configuration file
+    private static final int MAX_PROPFIND_RESOURCES = 50000;
+    
+    // TODO: export to configuration file
+    private static final boolean STREAMING_PROPFIND = true;
+    
+    // TODO: export to configuration file
+    private static final int MAX_PAGE_SIZE = 10000;
+    
+    // TODO: export to configuration file
+    private static final int CHILDREN_BATCH_SIZE = 500;
+    
+    /**
+     * Paging extension: clients ask for a page of a folder's children with
+     * Depth: 1 and these headers, and get the token of the next page in the
+     * NEXT_PAGE_HEADER response header.
+     */
+    public static final String PAGE_SIZE_HEADER = "X-DropVault-Page-Size";
+    
+    public static final String PAGE_TOKEN_HEADER = "X-DropVault-Page-Token";
+    
+    public static final String NEXT_PAGE_HEADER = "X-DropVault-Next-Page-Token";
+    
+    private static final String FINITE_DEPTH_ERROR = 
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<D:error xmlns:D=\"DAV:\"><D:propfind-finite-depth/></D:error>";
+    
     @EJB
     private AuthenticationService authenticationService;
     
+    @EJB
+    private PropfindStatistics statistics;
+    
     protected javax.ws.rs.core.Response propfind(UriInfo uriInfo,
             String user,
             String resource,
-            String depthStr) {
+            String depthStr,
+            PropfindRequest request,
+            String pageSizeStr,
+            String pageToken) {
 
         int depth = (depthStr == null || "Infinity".equals(depthStr)) ?
                 -1 : Integer.parseInt(depthStr);
@@ -72,25 +113,168 @@ public abstract class AbstractResourceRestService {
         if (current == null) {
             return javax.ws.rs.core.Response.status(404).build();
         }
+        
+        if (depth == 1 && pageSizeStr != null && current.isDirectory()) {
+            int pageSize;
+            try {
+                pageSize = Integer.parseInt(pageSizeStr);
+            } catch (NumberFormatException ex) {
+                return javax.ws.rs.core.Response.status(400).build();
+            }
+            if (pageSize <= 0) {
+                return javax.ws.rs.core.Response.status(400).build();
+            }
+            return pagedPropfind(uriInfo, current, Math.min(pageSize, MAX_PAGE_SIZE), 
+                    pageToken, request);
+        }
+        
+        if (STREAMING_PROPFIND && (depth == 0 || depth == 1 || current.getPath() != null)) {
+            return streamingPropfind(uriInfo, current, depth, request);
+        }
+
+        ResourceTree tree;
+        try {
+            tree = getFileService().getSubtree(current, depth, MAX_PROPFIND_RESOURCES,
+                    PropertyRegistry.getFields(request));
+        } catch (TooManyResourcesException ex) {
+            statistics.rejected();
+            return javax.ws.rs.core.Response.status(403)
+                    .type("application/xml")
+                    .entity(FINITE_DEPTH_ERROR)
+                    .build();
+        }
+        statistics.record(tree.getQueryCount(), tree.getSize());
 
         List<Response> responses = new ArrayList<Response>();
         
-        addWithChildren(uriInfo.getRequestUriBuilder(), current, responses, depth);
+        addWithChildren(uriInfo.getRequestUriBuilder(), tree, current, responses, depth, request);
 
         return javax.ws.rs.core.Response.status(207).entity(new MultiStatus(responses.toArray(new Response[responses.size()]))).build();
     }
     
-    private void addWithChildren(UriBuilder uri, Resource parent, List<Response> responses, int level) {
+    /**
+     * Streams the multistatus response as resources are read from the 
+     * database, instead of building the whole response in memory.
+     */
+    private javax.ws.rs.core.Response streamingPropfind(UriInfo uriInfo, 
+            final Resource current, final int depth, final PropfindRequest request) {
+        
+        if (depth != 0 && depth != 1 && current.isDirectory()
+                && getFileService().countSubtree(current, depth) >= MAX_PROPFIND_RESOURCES) {
+            statistics.rejected();
+            return javax.ws.rs.core.Response.status(403)
+                    .type("application/xml")
+                    .entity(FINITE_DEPTH_ERROR)
+                    .build();
+        }
+        
+        final UriBuilder base = uriInfo.getRequestUriBuilder();
+        StreamingOutput output = new StreamingOutput() {
+            public void write(OutputStream out) throws IOException {
+                MultiStatusWriter writer = new MultiStatusWriter(out);
+                writer.writeResponse(base.build(), current, request);
+                
+                int count = 1;
+                int queries = 0;
+                if (depth != 0 && current.isDirectory()) {
+                    Set<String> fields = PropertyRegistry.getFields(request);
+                    ResourceCursor cursor;
+                    if (depth == 1) {
+                        queries = 1;
+                        cursor = getFileService().findChildren(current, null, 
+                                fields, CHILDREN_BATCH_SIZE);
+                    } else {
+                        queries = 2;
+                        cursor = getFileService().findSubtree(current, depth, fields);
+                    }
+                    try {
+                        while (cursor.hasNext()) {
+                            if (count > MAX_PROPFIND_RESOURCES) {
+                                // Only reached for Depth: 1, deeper requests
+                                // have been counted beforehand
+                                writer.writeTruncated(base.build());
+                                break;
+                            }
+                            Resource res = cursor.next();
+                            writer.writeResponse(getHref(base, current, res, depth), res, request);
+                            count++;
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                
+                writer.close();
+                statistics.record(queries, count);
+            }
+        };
+        
+        return javax.ws.rs.core.Response.status(207)
+                .type("application/xml")
+                .entity(output)
+                .build();
+    }
+    
+    /**
+     * Lists one page of the children of a folder, sorted by name. The 
+     * folder itself is only part of the first page.
+     */
+    private javax.ws.rs.core.Response pagedPropfind(UriInfo uriInfo, 
+            final Resource current, int pageSize, final String pageToken,
+            final PropfindRequest request) {
+        
+        final ResourcePage page = getFileService().getChildren(current, 
+                pageToken, pageSize, PropertyRegistry.getFields(request));
+        
+        final UriBuilder base = uriInfo.getRequestUriBuilder();
+        StreamingOutput output = new StreamingOutput() {
+            public void write(OutputStream out) throws IOException {
+                MultiStatusWriter writer = new MultiStatusWriter(out);
+                if (pageToken == null) {
+                    writer.writeResponse(base.build(), current, request);
+                }
+                for (Resource res : page.getResources()) {
+                    writer.writeResponse(getHref(base, current, res, 1), res, request);
+                }
+                writer.close();
+            }
+        };
+        statistics.record(1, page.getResources().size() + 1);
+        
+        javax.ws.rs.core.Response.ResponseBuilder response = 
+                javax.ws.rs.core.Response.status(207)
+                .type("application/xml")
+                .entity(output);
+        if (page.getNextToken() != null) {
+            response.header(NEXT_PAGE_HEADER, page.getNextToken());
+        }
+        return response.build();
+    }
+    
+    private URI getHref(UriBuilder base, Resource root, Resource res, int depth) {
+        UriBuilder href = base.clone();
+        if (depth == 1) {
+            href.path(res.getName());
+        } else {
+            String relative = res.getPath().substring(root.getPath().length() + 1);
+            for (String name : relative.split("/")) {
+                href.path(name);
+            }
+        }
+        return href.build();
+    }
+    
+    private void addWithChildren(UriBuilder uri, ResourceTree tree, Resource parent, List<Response> responses, int level, PropfindRequest request) {
         responses.add(new Response(new HRef(uri.build()),
-                null, null, null, fileStat(parent)));
+                null, null, null, fileStat(parent, request)));
         
         if (level == 0) {
             return;
         }
         
         if (parent.isDirectory()) {
-            for (Resource child : getFileService().getChildren(parent)) {
-                addWithChildren(uri.clone().path(child.getName()), child, responses, level - 1);
+            for (Resource child : tree.getChildren(parent)) {
+                addWithChildren(uri.clone().path(child.getName()), tree, child, responses, level - 1, request);
             }
         }
     }
@@ -117,24 +301,60 @@ public abstract class AbstractResourceRestService {
                 .build();
     }
 
-    protected PropStat fileStat(Resource res) {
+    protected List<PropStat> fileStat(Resource res, PropfindRequest request) {
         List<Object> props = new ArrayList<Object>();
+        List<Object> missing = new ArrayList<Object>();
 
-        props.add(new DisplayName(res.getName()));
-        props.add(new CreationDate(res.getCreationDate()));
-        props.add(new GetLastModified(res.getModificationDate()));
-
-        if (res.isDirectory()) {
-            props.add(ResourceType.COLLECTION);
+        if (request.getType() == PropfindRequest.Type.PROP) {
+            for (QName name : request.getProperties()) {
+                PropertyProvider provider = PropertyRegistry.getProvider(name);
+                if (provider != null && provider.isDefined(res)) {
+                    props.add(provider.toProperty(res));
+                } else {
+                    missing.add(createElement(name));
+                }
+            }
         } else {
-            props.add(new GetContentType(res.getContentType()));
-            props.add(new GetContentLength(res.getContentLength()));
+            for (PropertyProvider provider : PropertyRegistry.getProviders()) {
+                if (!provider.isDefined(res)) {
+                    continue;
+                }
+                if (request.getType() == PropfindRequest.Type.PROPNAME) {
+                    props.add(createElement(provider.getName()));
+                } else {
+                    props.add(provider.toProperty(res));
+                }
+            }
         }
 
-        Prop prop = new Prop(props.toArray());
-        PropStat stat = new PropStat(prop, new Status((StatusType) javax.ws.rs.core.Response.Status.OK));
+        List<PropStat> stats = new ArrayList<PropStat>(2);
+        if (!props.isEmpty() || missing.isEmpty()) {
+            stats.add(new PropStat(new Prop(props.toArray()), 
+                    new Status((StatusType) javax.ws.rs.core.Response.Status.OK)));
+        }
+        if (!missing.isEmpty()) {
+            stats.add(new PropStat(new Prop(missing.toArray()), 
+                    new Status((StatusType) javax.ws.rs.core.Response.Status.NOT_FOUND)));
+        }
 
-        return stat;
+        return stats;
+    }
+    
+    /*
+     * Property names without values have no JAXB class, they are rendered
+     * as empty DOM elements.
+     */
+    private Element createElement(QName name) {
+        try {
+            Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            if (PropertyProvider.DAV.equals(name.getNamespaceURI())) {
+                return doc.createElementNS(name.getNamespaceURI(), 
+                        PropertyProvider.PREFIX + ":" + name.getLocalPart());
+            }
+            return doc.createElementNS(name.getNamespaceURI(), name.getLocalPart());
+        } catch (ParserConfigurationException ex) {
+            throw new RuntimeException(ex);
+        }
     }
     
     protected abstract MongoFileService getFileService();
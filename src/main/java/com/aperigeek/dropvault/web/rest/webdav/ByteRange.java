@@ -0,0 +1,139 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.rest.webdav;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Byte range requested through an HTTP Range header.
+ *
+ * @author Vivien Barousse
+ */
+public class ByteRange {
+    
+    private static final String BYTES_UNIT = "bytes=";
+    
+    // TODO: export to configuration file
+    private static final int MAX_RANGES = 32;
+    
+    private long start;
+    
+    private long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * First byte of the range.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Last byte of the range, inclusive.
+     */
+    public long getEnd() {
+        return end;
+    }
+    
+    public long getLength() {
+        return end - start + 1;
+    }
+    
+    /**
+     * Content-Range header value for this range.
+     * 
+     * @param length Total length of the resource
+     */
+    public String toContentRange(long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
+    
+    /**
+     * Parses a Range header.
+     * 
+     * @param header Range header value
+     * @param length Length of the requested resource
+     * @return The satisfiable ranges of the header, which may be empty, or
+     * null if the header is invalid and must be ignored
+     */
+    public static List<ByteRange> parse(String header, long length) {
+        if (!header.startsWith(BYTES_UNIT)) {
+            return null;
+        }
+        
+        String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        
+        List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            
+            try {
+                String first = spec.substring(0, dash);
+                String last = spec.substring(dash + 1);
+                
+                long start, end;
+                if (first.length() == 0) {
+                    // Suffix range, the last N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    if (last.length() == 0) {
+                        end = length - 1;
+                    } else {
+                        end = Long.parseLong(last);
+                        if (end < start) {
+                            return null;
+                        }
+                        end = Math.min(end, length - 1);
+                    }
+                    if (start < 0) {
+                        return null;
+                    }
+                }
+                
+                if (start < length) {
+                    ranges.add(new ByteRange(start, end));
+                }
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        
+        return ranges;
+    }
+    
+}
@@ -0,0 +1,184 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.rest.webdav;
+
+import com.aperigeek.dropvault.web.beans.Resource;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes a multistatus PROPFIND response one resource at a time.
+ * 
+ * The output matches the JAXB rendering of the corresponding 
+ * {@link net.java.dev.webdav.jaxrs.xml.elements.MultiStatus}, but never
+ * holds more than one response in memory. Only the properties requested
+ * by the client are computed; unknown properties are reported in a 404
+ * propstat.
+ *
+ * @author Vivien Barousse
+ */
+public class MultiStatusWriter {
+    
+    private static final String DAV = "DAV:";
+    
+    private static final String PREFIX = "D";
+    
+    private static final String XML_DECLARATION = 
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>";
+    
+    private static final String STATUS_OK = "HTTP/1.1 200 OK";
+    
+    private static final String STATUS_NOT_FOUND = "HTTP/1.1 404 Not Found";
+    
+    private static final String STATUS_INSUFFICIENT_STORAGE = "HTTP/1.1 507 Insufficient Storage";
+    
+    private static final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+    
+    private XMLStreamWriter writer;
+
+    public MultiStatusWriter(OutputStream out) throws IOException {
+        out.write(XML_DECLARATION.getBytes("UTF-8"));
+        try {
+            writer = factory.createXMLStreamWriter(out, "UTF-8");
+            writer.setPrefix(PREFIX, DAV);
+            writer.writeStartElement(PREFIX, "multistatus", DAV);
+            writer.writeNamespace(PREFIX, DAV);
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        }
+    }
+    
+    public void writeResponse(URI href, Resource res, PropfindRequest request) throws IOException {
+        List<PropertyProvider> found = new ArrayList<PropertyProvider>();
+        List<QName> missing = new ArrayList<QName>();
+        
+        if (request.getType() == PropfindRequest.Type.PROP) {
+            for (QName name : request.getProperties()) {
+                PropertyProvider provider = PropertyRegistry.getProvider(name);
+                if (provider != null && provider.isDefined(res)) {
+                    found.add(provider);
+                } else {
+                    missing.add(name);
+                }
+            }
+        } else {
+            for (PropertyProvider provider : PropertyRegistry.getProviders()) {
+                if (provider.isDefined(res)) {
+                    found.add(provider);
+                }
+            }
+        }
+        
+        try {
+            writer.writeStartElement(PREFIX, "response", DAV);
+            writeElement("href", href.toString());
+            
+            if (!found.isEmpty() || missing.isEmpty()) {
+                writer.writeStartElement(PREFIX, "propstat", DAV);
+                writer.writeStartElement(PREFIX, "prop", DAV);
+                for (PropertyProvider provider : found) {
+                    if (request.getType() == PropfindRequest.Type.PROPNAME) {
+                        writeName(provider.getName());
+                    } else {
+                        provider.write(writer, res);
+                    }
+                }
+                writer.writeEndElement(); // prop
+                writeElement("status", STATUS_OK);
+                writer.writeEndElement(); // propstat
+            }
+            
+            if (!missing.isEmpty()) {
+                writer.writeStartElement(PREFIX, "propstat", DAV);
+                writer.writeStartElement(PREFIX, "prop", DAV);
+                for (QName name : missing) {
+                    writeName(name);
+                }
+                writer.writeEndElement(); // prop
+                writeElement("status", STATUS_NOT_FOUND);
+                writer.writeEndElement(); // propstat
+            }
+            
+            writer.writeEndElement(); // response
+            writer.flush();
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        }
+    }
+    
+    /**
+     * Reports that the response has been truncated by a server limit, as
+     * described in RFC 4918 section 9.1.
+     */
+    public void writeTruncated(URI href) throws IOException {
+        try {
+            writer.writeStartElement(PREFIX, "response", DAV);
+            writeElement("href", href.toString());
+            writeElement("status", STATUS_INSUFFICIENT_STORAGE);
+            writer.writeStartElement(PREFIX, "error", DAV);
+            writer.writeEmptyElement(PREFIX, "number-of-matches-within-limits", DAV);
+            writer.writeEndElement(); // error
+            writer.writeEndElement(); // response
+            writer.flush();
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        }
+    }
+    
+    public void close() throws IOException {
+        try {
+            writer.writeEndElement(); // multistatus
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        }
+    }
+    
+    /*
+     * Properties from other namespaces declare their namespace on the 
+     * element itself.
+     */
+    private void writeName(QName name) throws XMLStreamException {
+        if (DAV.equals(name.getNamespaceURI())) {
+            writer.writeEmptyElement(PREFIX, name.getLocalPart(), DAV);
+        } else if (name.getNamespaceURI().length() == 0) {
+            writer.writeEmptyElement(name.getLocalPart());
+        } else {
+            writer.writeEmptyElement("ns0", name.getLocalPart(), name.getNamespaceURI());
+            writer.writeNamespace("ns0", name.getNamespaceURI());
+        }
+    }
+    
+    private void writeElement(String name, String value) throws XMLStreamException {
+        if (value == null) {
+            writer.writeEmptyElement(PREFIX, name, DAV);
+        } else {
+            writer.writeStartElement(PREFIX, name, DAV);
+            writer.writeCharacters(value);
+            writer.writeEndElement();
+        }
+    }
+    
+}
@@ -0,0 +1,91 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.rest.webdav;
+
+import com.aperigeek.dropvault.web.beans.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Computes the value of a single WebDAV property.
+ * 
+ * Providers are only evaluated for the properties actually requested by 
+ * the client. Each provider declares the database fields it reads, so that
+ * resources can be loaded with only those fields.
+ *
+ * @author Vivien Barousse
+ */
+public abstract class PropertyProvider {
+    
+    public static final String DAV = "DAV:";
+    
+    public static final String PREFIX = "D";
+    
+    private final QName name;
+    
+    private final Set<String> fields;
+
+    protected PropertyProvider(String localName, String... fields) {
+        this.name = new QName(DAV, localName, PREFIX);
+        this.fields = Collections.unmodifiableSet(
+                new HashSet<String>(Arrays.asList(fields)));
+    }
+
+    public QName getName() {
+        return name;
+    }
+
+    /**
+     * @return Database fields needed to compute this property
+     */
+    public Set<String> getFields() {
+        return fields;
+    }
+    
+    /**
+     * @return true if this property exists on the given resource
+     */
+    public boolean isDefined(Resource res) {
+        return true;
+    }
+    
+    /**
+     * Writes the property element and its value.
+     */
+    public abstract void write(XMLStreamWriter writer, Resource res) throws XMLStreamException;
+    
+    /**
+     * @return JAXB representation of the property
+     */
+    public abstract Object toProperty(Resource res);
+    
+    protected void writeElement(XMLStreamWriter writer, String value) throws XMLStreamException {
+        if (value == null) {
+            writer.writeEmptyElement(PREFIX, name.getLocalPart(), DAV);
+        } else {
+            writer.writeStartElement(PREFIX, name.getLocalPart(), DAV);
+            writer.writeCharacters(value);
+            writer.writeEndElement();
+        }
+    }
+    
+}
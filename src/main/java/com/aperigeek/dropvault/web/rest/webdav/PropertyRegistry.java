@@ -0,0 +1,182 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.rest.webdav;
+
+import com.aperigeek.dropvault.web.beans.Resource;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import net.java.dev.webdav.jaxrs.xml.elements.Rfc1123DateFormat;
+import net.java.dev.webdav.jaxrs.xml.elements.Rfc3339DateTimeFormat;
+import net.java.dev.webdav.jaxrs.xml.properties.CreationDate;
+import net.java.dev.webdav.jaxrs.xml.properties.DisplayName;
+import net.java.dev.webdav.jaxrs.xml.properties.GetContentLength;
+import net.java.dev.webdav.jaxrs.xml.properties.GetContentType;
+import net.java.dev.webdav.jaxrs.xml.properties.GetLastModified;
+import net.java.dev.webdav.jaxrs.xml.properties.ResourceType;
+
+/**
+ * Live properties supported by PROPFIND.
+ *
+ * @author Vivien Barousse
+ */
+public final class PropertyRegistry {
+    
+    /**
+     * Fields always loaded, needed to build resources and their hrefs.
+     */
+    public static final Set<String> BASE_FIELDS = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList(
+                "_id", "user", "parent", "name", "path", "ancestors", "type")));
+    
+    private static final Map<QName, PropertyProvider> providers = 
+            new LinkedHashMap<QName, PropertyProvider>();
+    
+    static {
+        register(new PropertyProvider("displayname", "name") {
+            @Override
+            public void write(XMLStreamWriter writer, Resource res) throws XMLStreamException {
+                writeElement(writer, res.getName());
+            }
+            @Override
+            public Object toProperty(Resource res) {
+                return new DisplayName(res.getName());
+            }
+        });
+        
+        register(new PropertyProvider("creationdate", "creationDate") {
+            @Override
+            public void write(XMLStreamWriter writer, Resource res) throws XMLStreamException {
+                writeElement(writer, new Rfc3339DateTimeFormat().format(res.getCreationDate()));
+            }
+            @Override
+            public Object toProperty(Resource res) {
+                return new CreationDate(res.getCreationDate());
+            }
+        });
+        
+        register(new PropertyProvider("getlastmodified", "modificationDate") {
+            @Override
+            public void write(XMLStreamWriter writer, Resource res) throws XMLStreamException {
+                writeElement(writer, new Rfc1123DateFormat().format(res.getModificationDate()));
+            }
+            @Override
+            public Object toProperty(Resource res) {
+                return new GetLastModified(res.getModificationDate());
+            }
+        });
+        
+        // Defined on every resource, empty for files
+        register(new PropertyProvider("resourcetype", "type") {
+            @Override
+            public void write(XMLStreamWriter writer, Resource res) throws XMLStreamException {
+                if (res.isDirectory()) {
+                    writer.writeStartElement(PREFIX, "resourcetype", DAV);
+                    writer.writeEmptyElement(PREFIX, "collection", DAV);
+                    writer.writeEndElement();
+                } else {
+                    writer.writeEmptyElement(PREFIX, "resourcetype", DAV);
+                }
+            }
+            @Override
+            public Object toProperty(Resource res) {
+                return res.isDirectory() ? ResourceType.COLLECTION : new ResourceType();
+            }
+        });
+        
+        register(new PropertyProvider("getcontenttype", "contentType") {
+            @Override
+            public boolean isDefined(Resource res) {
+                return !res.isDirectory();
+            }
+            @Override
+            public void write(XMLStreamWriter writer, Resource res) throws XMLStreamException {
+                writeElement(writer, res.getContentType());
+            }
+            @Override
+            public Object toProperty(Resource res) {
+                return new GetContentType(res.getContentType());
+            }
+        });
+        
+        register(new PropertyProvider("getcontentlength", "contentLength") {
+            @Override
+            public boolean isDefined(Resource res) {
+                return !res.isDirectory();
+            }
+            @Override
+            public void write(XMLStreamWriter writer, Resource res) throws XMLStreamException {
+                writeElement(writer, Long.toString(res.getContentLength()));
+            }
+            @Override
+            public Object toProperty(Resource res) {
+                return new GetContentLength(res.getContentLength());
+            }
+        });
+    }
+    
+    private PropertyRegistry() {
+    }
+    
+    private static void register(PropertyProvider provider) {
+        providers.put(provider.getName(), provider);
+    }
+    
+    /**
+     * @return Provider for the given property, or null if it is not supported
+     */
+    public static PropertyProvider getProvider(QName name) {
+        return providers.get(name);
+    }
+    
+    public static Collection<PropertyProvider> getProviders() {
+        return Collections.unmodifiableCollection(providers.values());
+    }
+    
+    /**
+     * Lists the database fields needed to answer a PROPFIND request.
+     */
+    public static Set<String> getFields(PropfindRequest request) {
+        Set<String> fields = new HashSet<String>(BASE_FIELDS);
+        switch (request.getType()) {
+            case ALLPROP:
+                for (PropertyProvider provider : providers.values()) {
+                    fields.addAll(provider.getFields());
+                }
+                break;
+            case PROP:
+                for (QName name : request.getProperties()) {
+                    PropertyProvider provider = providers.get(name);
+                    if (provider != null) {
+                        fields.addAll(provider.getFields());
+                    }
+                }
+                break;
+            case PROPNAME:
+                break;
+        }
+        return fields;
+    }
+    
+}
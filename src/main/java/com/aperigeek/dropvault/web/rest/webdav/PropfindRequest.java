@@ -0,0 +1,168 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.rest.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Properties requested by a PROPFIND request body.
+ *
+ * @author Vivien Barousse
+ */
+public class PropfindRequest {
+    
+    public enum Type {
+        ALLPROP,
+        PROPNAME,
+        PROP;
+    }
+    
+    /**
+     * Request used when the client sends no body.
+     */
+    public static final PropfindRequest ALLPROP = 
+            new PropfindRequest(Type.ALLPROP, Collections.<QName>emptyList());
+    
+    private static final String DAV = "DAV:";
+    
+    private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+    
+    static {
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+    
+    private final Type type;
+    
+    private final List<QName> properties;
+
+    public PropfindRequest(Type type, List<QName> properties) {
+        this.type = type;
+        this.properties = properties;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return Requested properties, only relevant for PROP requests
+     */
+    public List<QName> getProperties() {
+        return properties;
+    }
+    
+    /**
+     * Parses a PROPFIND request body. An empty body is an allprop request.
+     * 
+     * @param body Request body, may be null
+     * @return Parsed request
+     * @throws ProtocolException If the body is not a valid propfind element
+     */
+    public static PropfindRequest parse(InputStream body) throws ProtocolException {
+        if (body == null) {
+            return ALLPROP;
+        }
+        
+        try {
+            PushbackInputStream in = new PushbackInputStream(body);
+            int first = in.read();
+            if (first == -1) {
+                return ALLPROP;
+            }
+            in.unread(first);
+            
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                return parse(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            throw new ProtocolException(ex);
+        } catch (XMLStreamException ex) {
+            throw new ProtocolException(ex);
+        }
+    }
+    
+    private static PropfindRequest parse(XMLStreamReader reader) 
+            throws XMLStreamException, ProtocolException {
+        
+        reader.nextTag();
+        if (!isDav(reader, "propfind")) {
+            throw new ProtocolException("Expected propfind element");
+        }
+        
+        Type type = null;
+        List<QName> properties = new ArrayList<QName>();
+        
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (isDav(reader, "allprop")) {
+                type = Type.ALLPROP;
+                skipElement(reader);
+            } else if (isDav(reader, "propname")) {
+                type = Type.PROPNAME;
+                skipElement(reader);
+            } else if (isDav(reader, "prop")) {
+                type = Type.PROP;
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    properties.add(reader.getName());
+                    skipElement(reader);
+                }
+            } else {
+                // Unknown elements, and DAV:include, are ignored
+                skipElement(reader);
+            }
+        }
+        
+        if (type == null) {
+            throw new ProtocolException("Expected allprop, propname or prop element");
+        }
+        if (type == Type.ALLPROP) {
+            return ALLPROP;
+        }
+        return new PropfindRequest(type, properties);
+    }
+    
+    private static boolean isDav(XMLStreamReader reader, String name) {
+        return DAV.equals(reader.getNamespaceURI()) 
+                && name.equals(reader.getLocalName());
+    }
+    
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int level = 1;
+        while (level > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                level++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                level--;
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,101 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.rest.webdav;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+
+/**
+ * Collects statistics about PROPFIND requests.
+ *
+ * @author Vivien Barousse
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class PropfindStatistics {
+    
+    private static final Logger log = Logger.getLogger(PropfindStatistics.class.getName());
+    
+    private final AtomicLong requests = new AtomicLong();
+    
+    private final AtomicLong queries = new AtomicLong();
+    
+    private final AtomicLong maxQueries = new AtomicLong();
+    
+    private final AtomicLong resources = new AtomicLong();
+    
+    private final AtomicLong rejected = new AtomicLong();
+    
+    /**
+     * Records a completed PROPFIND request.
+     * 
+     * @param queryCount Number of queries issued to load the resources
+     * @param resourceCount Number of resources returned
+     */
+    public void record(int queryCount, int resourceCount) {
+        requests.incrementAndGet();
+        queries.addAndGet(queryCount);
+        resources.addAndGet(resourceCount);
+        
+        long max;
+        do {
+            max = maxQueries.get();
+        } while (queryCount > max && !maxQueries.compareAndSet(max, queryCount));
+        
+        if (log.isLoggable(Level.FINE)) {
+            log.log(Level.FINE, "PROPFIND returned {0} resources using {1} queries", 
+                    new Object[] {resourceCount, queryCount});
+        }
+    }
+    
+    /**
+     * Records a PROPFIND request rejected because of its size.
+     */
+    public void rejected() {
+        rejected.incrementAndGet();
+    }
+    
+    public long getRequests() {
+        return requests.get();
+    }
+    
+    public long getQueries() {
+        return queries.get();
+    }
+    
+    public long getMaxQueries() {
+        return maxQueries.get();
+    }
+    
+    public long getResources() {
+        return resources.get();
+    }
+    
+    public long getRejected() {
+        return rejected.get();
+    }
+    
+    public double getAverageQueries() {
+        long count = requests.get();
+        return count == 0 ? 0 : (double) queries.get() / count;
+    }
+    
+}
@@ -16,18 +16,24 @@
  */
 package com.aperigeek.dropvault.web.rest.webdav;
 
+import com.aperigeek.dropvault.web.beans.CopyResult;
 import com.aperigeek.dropvault.web.beans.Resource;
 import com.aperigeek.dropvault.web.dao.MongoFileService;
 import com.aperigeek.dropvault.web.dao.ResourceAlreadyExistsException;
 import com.aperigeek.dropvault.web.dao.ResourceNotFoundException;
+import com.aperigeek.dropvault.web.dao.TooManyResourcesException;
 import com.aperigeek.dropvault.web.dao.user.InvalidPasswordException;
 import com.aperigeek.dropvault.web.dao.user.UsersDAO;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.ws.rs.Consumes;
@@ -39,12 +45,21 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response.StatusType;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 import net.java.dev.webdav.jaxrs.methods.COPY;
 import net.java.dev.webdav.jaxrs.methods.MKCOL;
 import net.java.dev.webdav.jaxrs.methods.MOVE;
 import net.java.dev.webdav.jaxrs.methods.PROPFIND;
+import net.java.dev.webdav.jaxrs.xml.elements.HRef;
+import net.java.dev.webdav.jaxrs.xml.elements.MultiStatus;
+import net.java.dev.webdav.jaxrs.xml.elements.Response;
 import net.java.dev.webdav.jaxrs.xml.elements.Rfc1123DateFormat;
+import net.java.dev.webdav.jaxrs.xml.elements.Status;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 
 /**
  *
@@ -66,10 +81,15 @@ public class ResourceRestService extends AbstractResourceRestService {
             @PathParam("user") String user,
             @PathParam("resource") String resource,
             @HeaderParam("Depth") String depthStr,
-            @HeaderParam("Authorization") String authorization) {
+            @HeaderParam("Authorization") String authorization,
+            @HeaderParam(PAGE_SIZE_HEADER) String pageSize,
+            @HeaderParam(PAGE_TOKEN_HEADER) String pageToken,
+            InputStream body) {
         
+        PropfindRequest request;
         try {
             checkAuthentication(user, authorization);
+            request = PropfindRequest.parse(body);
         } catch (InvalidPasswordException ex) {
             return javax.ws.rs.core.Response.status(401)
                     .header("WWW-Authenticate", "Basic realm=\"DAV client\"")
@@ -80,13 +100,16 @@ public class ResourceRestService extends AbstractResourceRestService {
             return javax.ws.rs.core.Response.status(400).build();
         }
 
-        return super.propfind(uriInfo, user, resource, depthStr);
+        return super.propfind(uriInfo, user, resource, depthStr, request,
+                pageSize, pageToken);
     }
 
     @Produces("application/octet-stream")
     @GET
-    public javax.ws.rs.core.Response get(@PathParam("user") String user,
+    public javax.ws.rs.core.Response get(@PathParam("user") final String user,
             @PathParam("resource") String resource,
+            @HeaderParam("Range") String range,
+            @HeaderParam("If-Range") String ifRange,
             @HeaderParam("Authorization") String authorization) throws IOException {
         
         String password;
@@ -113,13 +136,79 @@ public class ResourceRestService extends AbstractResourceRestService {
             return javax.ws.rs.core.Response.status(404).build();
         }
         
-        InputStream in = fileService.get(user, res, password.toCharArray());
+        long length = res.getContentLength();
+        String lastModified = new Rfc1123DateFormat().format(res.getModificationDate());
+        
+        List<ByteRange> ranges = null;
+        if (range != null && (ifRange == null || ifRange.equals(lastModified))) {
+            ranges = ByteRange.parse(range, length);
+        }
+        
+        if (ranges == null) {
+            InputStream in = fileService.get(user, res, password.toCharArray());
+
+            return javax.ws.rs.core.Response.ok()
+                    .header("Content-Type", res.getContentType())
+                    .header("Content-Length", length)
+                    .header("Last-Modified", lastModified)
+                    .header("Accept-Ranges", "bytes")
+                    .entity(in)
+                    .build();
+        }
+        
+        if (ranges.isEmpty()) {
+            return javax.ws.rs.core.Response.status(416)
+                    .header("Content-Range", "bytes */" + length)
+                    .build();
+        }
         
-        return javax.ws.rs.core.Response.ok()
-                .header("Content-Type", res.getContentType())
-                .header("Content-Length", res.getContentLength())
-                .header("Last-Modified", new Rfc1123DateFormat().format(res.getModificationDate()))
-                .entity(in)
+        if (ranges.size() == 1) {
+            ByteRange r = ranges.get(0);
+            InputStream in = new BoundedInputStream(
+                    fileService.get(user, res, password.toCharArray(), r.getStart()),
+                    r.getLength());
+            
+            return javax.ws.rs.core.Response.status(206)
+                    .header("Content-Type", res.getContentType())
+                    .header("Content-Length", r.getLength())
+                    .header("Content-Range", r.toContentRange(length))
+                    .header("Last-Modified", lastModified)
+                    .header("Accept-Ranges", "bytes")
+                    .entity(in)
+                    .build();
+        }
+        
+        final String boundary = UUID.randomUUID().toString();
+        final Resource fRes = res;
+        final List<ByteRange> fRanges = ranges;
+        final char[] fPassword = password.toCharArray();
+        StreamingOutput multipart = new StreamingOutput() {
+            public void write(OutputStream out) throws IOException {
+                for (ByteRange r : fRanges) {
+                    String partHeader = "\r\n--" + boundary + "\r\n"
+                            + "Content-Type: " + fRes.getContentType() + "\r\n"
+                            + "Content-Range: " + r.toContentRange(fRes.getContentLength()) + "\r\n"
+                            + "\r\n";
+                    out.write(partHeader.getBytes("US-ASCII"));
+                    
+                    InputStream in = new BoundedInputStream(
+                            fileService.get(user, fRes, fPassword, r.getStart()),
+                            r.getLength());
+                    try {
+                        IOUtils.copy(in, out);
+                    } finally {
+                        in.close();
+                    }
+                }
+                out.write(("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII"));
+            }
+        };
+        
+        return javax.ws.rs.core.Response.status(206)
+                .header("Content-Type", "multipart/byteranges; boundary=" + boundary)
+                .header("Last-Modified", lastModified)
+                .header("Accept-Ranges", "bytes")
+                .entity(multipart)
                 .build();
         
     }
@@ -221,6 +310,8 @@ public class ResourceRestService extends AbstractResourceRestService {
             @PathParam("user") String user,
             @PathParam("resource") String resource,
             @HeaderParam("Destination") String destination,
+            @HeaderParam("Depth") String depth,
+            @HeaderParam("Overwrite") String overwrite,
             @HeaderParam("Authorization") String authorization) throws IOException {
         
         String password;
@@ -246,13 +337,51 @@ public class ResourceRestService extends AbstractResourceRestService {
             return javax.ws.rs.core.Response.status(404).build();
         }
         
-        InputStream data = fileService.get(user, res, password.toCharArray());
+        boolean recursive;
+        if (depth == null || "infinity".equalsIgnoreCase(depth)) {
+            recursive = true;
+        } else if ("0".equals(depth)) {
+            recursive = false;
+        } else {
+            return javax.ws.rs.core.Response.status(400).build();
+        }
+        
+        CopyResult result;
         try {
-            fileService.put(user, dest, data, res.getContentLength(), res.getContentType(), password.toCharArray());
+            result = fileService.copy(user, res, dest, recursive, 
+                    !"F".equalsIgnoreCase(overwrite), password.toCharArray());
         } catch (ResourceNotFoundException ex) {
-            javax.ws.rs.core.Response.status(209).build();
+            return javax.ws.rs.core.Response.status(409).build();
+        } catch (ResourceAlreadyExistsException ex) {
+            return javax.ws.rs.core.Response.status(412).build();
+        } catch (TooManyResourcesException ex) {
+            return javax.ws.rs.core.Response.status(507).build();
+        } catch (IllegalArgumentException ex) {
+            return javax.ws.rs.core.Response.status(403).build();
+        }
+        
+        if (!result.getFailures().isEmpty()) {
+            List<Response> responses = new ArrayList<Response>();
+            for (String failure : result.getFailures()) {
+                UriBuilder href = UriBuilder.fromUri(destination);
+                for (String name : failure.split("/")) {
+                    if (name.length() > 0) {
+                        href.path(name);
+                    }
+                }
+                responses.add(new Response(
+                        new Status((StatusType) javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR),
+                        null, null, null, new HRef(href.build())));
+            }
+            return javax.ws.rs.core.Response.status(207)
+                    .type("application/xml")
+                    .entity(new MultiStatus(responses.toArray(new Response[responses.size()])))
+                    .build();
         }
         
+        if (result.isOverwritten()) {
+            return javax.ws.rs.core.Response.noContent().build();
+        }
         return javax.ws.rs.core.Response.created(URI.create(destination)).build();
         
     }
@@ -19,6 +19,7 @@ package com.aperigeek.dropvault.web.rest.webdav;
 import com.aperigeek.dropvault.web.dao.MongoFileService;
 import com.aperigeek.dropvault.web.dao.user.InvalidPasswordException;
 import com.aperigeek.dropvault.web.dao.user.UsersDAO;
+import java.io.InputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.ejb.EJB;
@@ -50,10 +51,15 @@ public class RootFolderRestService extends AbstractResourceRestService {
     public javax.ws.rs.core.Response propfind(@Context UriInfo uriInfo,
             @PathParam("user") String user,
             @HeaderParam("Depth") String depthStr,
-            @HeaderParam("Authorization") String authorization) {
+            @HeaderParam("Authorization") String authorization,
+            @HeaderParam(PAGE_SIZE_HEADER) String pageSize,
+            @HeaderParam(PAGE_TOKEN_HEADER) String pageToken,
+            InputStream body) {
         
+        PropfindRequest request;
         try {
             checkAuthentication(user, authorization);
+            request = PropfindRequest.parse(body);
         } catch (InvalidPasswordException ex) {
             return javax.ws.rs.core.Response.status(401)
                     .header("WWW-Authenticate", "Basic realm=\"DAV client\"")
@@ -64,7 +70,8 @@ public class RootFolderRestService extends AbstractResourceRestService {
             return javax.ws.rs.core.Response.status(400).build();
         }
         
-        return super.propfind(uriInfo, user, ".", depthStr);
+        return super.propfind(uriInfo, user, ".", depthStr, request,
+                pageSize, pageToken);
         
     }
     
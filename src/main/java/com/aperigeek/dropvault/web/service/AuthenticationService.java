@@ -21,8 +21,6 @@ import com.aperigeek.dropvault.web.dao.user.InvalidPasswordException;
 import com.aperigeek.dropvault.web.dao.user.UsersDAO;
 import com.aperigeek.dropvault.web.rest.webdav.NotAuthorizedException;
 import com.aperigeek.dropvault.web.rest.webdav.ProtocolException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import org.apache.commons.codec.binary.Base64;
@@ -34,12 +32,17 @@ import org.apache.commons.codec.binary.Base64;
 @Stateless
 public class AuthenticationService {
     
+    private static final String BASIC_PREFIX = "Basic ";
+    
     @EJB
     private HashService hashService;
     
     @EJB
     private UsersDAO usersDAO;
     
+    @EJB
+    private CredentialCache credentialCache;
+    
     public User checkAuthentication(String header) 
             throws InvalidPasswordException, NotAuthorizedException, ProtocolException {
         
@@ -47,28 +50,30 @@ public class AuthenticationService {
             throw new InvalidPasswordException();
         }
         
-        Pattern headerPattern = Pattern.compile("Basic (.+)");
-        Matcher headerMatcher = headerPattern.matcher(header);
-        
-        if (!headerMatcher.matches()) {
+        if (header.length() <= BASIC_PREFIX.length() 
+                || !header.startsWith(BASIC_PREFIX)) {
             throw new ProtocolException("Invalid Authorization header");
         }
         
-        String b64 = headerMatcher.group(1);
+        String b64 = header.substring(BASIC_PREFIX.length());
         String headerContent = new String(Base64.decodeBase64(b64));
         
-        Pattern passwordPattern = Pattern.compile("(.+):([^:]+)");
-        Matcher passwordMatcher = passwordPattern.matcher(headerContent);
-
-        if (!passwordMatcher.matches()) {
+        int separator = headerContent.lastIndexOf(':');
+        if (separator <= 0 || separator == headerContent.length() - 1) {
             throw new ProtocolException("Invalid authentication header");
         }
 
-        String user = passwordMatcher.group(1);
-        String password = passwordMatcher.group(2);
+        String user = headerContent.substring(0, separator);
+        String password = headerContent.substring(separator + 1);
+        
+        if (credentialCache.isVerified(user, header)) {
+            return new User(user, password);
+        }
+        
         String hashPassword = hashService.hash(password);
         
         if (usersDAO.login(user, hashPassword)) {
+            credentialCache.verified(user, header);
             return new User(user, password);
         }
         
@@ -16,54 +16,140 @@
  */
 package com.aperigeek.dropvault.web.service;
 
-import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.ejb.Stateless;
-import org.apache.tika.exception.TikaException;
-import org.apache.tika.metadata.Metadata;
-import org.apache.tika.parser.AutoDetectParser;
-import org.apache.tika.parser.ParseContext;
-import org.apache.tika.parser.Parser;
-import org.apache.tika.sax.BodyContentHandler;
-import org.xml.sax.SAXException;
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
 
 /**
  *
  * @author Vivien Barousse
  */
-@Stateless
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
 public class ContentExtractionService {
     
-    public Map<String, String> extractContent(String fileName, InputStream data, String contentType) throws ContentExtractionException {
+    private static final Logger log = Logger.getLogger(ContentExtractionService.class.getName());
+    
+    // TODO: export to configuration file
+    private static final int DEFAULT_MAX_CHARS = 1024 * 1024;
+    
+    /**
+     * Character limits per content type, "type/*" entries applying to all
+     * the subtypes of a type.
+     */
+    // TODO: export to configuration file
+    private static final Map<String, Integer> MAX_CHARS = new HashMap<String, Integer>();
+    
+    static {
+        MAX_CHARS.put("text/*", 4 * 1024 * 1024);
+        MAX_CHARS.put("application/pdf", 2 * 1024 * 1024);
+        // Logs and data dumps, their beginning is usually enough
+        MAX_CHARS.put("text/x-log", 256 * 1024);
+        MAX_CHARS.put("text/csv", 256 * 1024);
+        // Only the metadata of media files is indexed
+        MAX_CHARS.put("image/*", 0);
+        MAX_CHARS.put("audio/*", 0);
+        MAX_CHARS.put("video/*", 0);
+    }
+    
+    /**
+     * Whether files are parsed in separate worker processes, rather than
+     * in the application server.
+     */
+    // TODO: export to configuration file
+    private static final boolean OUT_OF_PROCESS = true;
+    
+    private final AtomicLong extractions = new AtomicLong();
+    
+    private final AtomicLong extractionTime = new AtomicLong();
+    
+    @EJB
+    private ExtractionWorkerPool workerPool;
+    
+    private TextExtractor extractor;
+    
+    @PostConstruct
+    protected void init() {
+        if (!OUT_OF_PROCESS) {
+            long start = System.currentTimeMillis();
+            extractor = new TextExtractor();
+            log.log(Level.INFO, "Content extraction initialized in {0} ms", 
+                    System.currentTimeMillis() - start);
+        }
+    }
+    
+    /**
+     * Extracts the text and metadata of a file.
+     * 
+     * The text is kept in memory up to the character limit of the file's 
+     * type, parsing stops once it is reached.
+     * 
+     * @param fileName Name of the file
+     * @param data Content of the file
+     * @param contentType Type of the file, may be null
+     * @return Extracted content
+     */
+    public ExtractedContent extractContent(String fileName, InputStream data, String contentType) throws ContentExtractionException {
+        long start = System.nanoTime();
         try {
-            Parser parser = new AutoDetectParser();
-            BodyContentHandler bodyHandler = new BodyContentHandler();
-            Metadata metadata = new Metadata();
-            ParseContext context = new ParseContext();
-            parser.parse(data, 
-                    bodyHandler, 
-                    metadata, 
-                    context);
-            System.out.println(metadata.toString());
-            System.out.println(bodyHandler.toString());
-            
-            Map<String, String> results = new HashMap<String, String>();
-            results.put("title", metadata.get("title"));
-            results.put("author", metadata.get("Author"));
-            results.put("body", bodyHandler.toString());
-            
-            return results;
-        } catch (IOException ex) {
-            throw new ContentExtractionException("IO exception during content extraction", ex);
-        } catch (SAXException ex) {
-            throw new ContentExtractionException("SAX exception during content extraction", ex);
-        } catch (TikaException ex) {
-            throw new ContentExtractionException("Tika exception during content extraction", ex);
+            int maxChars = getMaxChars(contentType);
+            if (OUT_OF_PROCESS) {
+                return workerPool.extract(fileName, data, contentType, maxChars);
+            } else {
+                return extractor.extract(fileName, data, contentType, maxChars);
+            }
+        } finally {
+            extractions.incrementAndGet();
+            extractionTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Maximum number of characters extracted from a file of a given type.
+     */
+    protected int getMaxChars(String contentType) {
+        if (contentType == null) {
+            return DEFAULT_MAX_CHARS;
+        }
+        
+        String type = contentType;
+        int params = type.indexOf(';');
+        if (params != -1) {
+            type = type.substring(0, params);
         }
+        type = type.trim().toLowerCase();
+        
+        Integer max = MAX_CHARS.get(type);
+        if (max == null) {
+            int slash = type.indexOf('/');
+            if (slash != -1) {
+                max = MAX_CHARS.get(type.substring(0, slash + 1) + "*");
+            }
+        }
+        return max == null ? DEFAULT_MAX_CHARS : max;
+    }
+    
+    public long getExtractions() {
+        return extractions.get();
+    }
+    
+    /**
+     * @return Average time spent extracting the content of a file, in 
+     *         microseconds
+     */
+    public long getAverageExtractionTime() {
+        long count = extractions.get();
+        return count == 0 ? 0 : extractionTime.get() / count / 1000;
     }
     
 }
@@ -0,0 +1,145 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service;
+
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Short lived cache of successfully verified Authorization headers.
+ * 
+ * Headers are never stored as is: entries are indexed by a keyed digest of
+ * the header, the key being generated randomly at startup.
+ * 
+ * Entries are not invalidated when a password record changes, a changed 
+ * password is only enforced once the cached headers expire.
+ *
+ * @author Vivien Barousse
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class CredentialCache {
+    
+    // TODO: export to configuration file
+    private static final int MAX_ENTRIES = 1024;
+    
+    // TODO: export to configuration file
+    private static final long TTL = 60 * 1000; // 1 minute
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    private SecretKey digestKey;
+    
+    private final AtomicLong hits = new AtomicLong();
+    
+    private final AtomicLong misses = new AtomicLong();
+    
+    private final Map<String, CachedCredential> cache = 
+            new LinkedHashMap<String, CachedCredential>(16, 0.75f, true) {
+        
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedCredential> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    
+    @PostConstruct
+    protected void init() {
+        try {
+            digestKey = KeyGenerator.getInstance("HmacSHA256").generateKey();
+        } catch (Exception ex) {
+            throw new RuntimeException("Bad configuration", ex);
+        }
+    }
+    
+    /**
+     * Checks whether a header has recently been verified for a given user.
+     * 
+     * @param username User name contained in the header
+     * @param header Authorization header
+     * @return true if the header is known to be valid
+     */
+    public boolean isVerified(String username, String header) {
+        String digest = digest(header);
+        long now = System.currentTimeMillis();
+        
+        synchronized (cache) {
+            CachedCredential cached = cache.get(digest);
+            if (cached != null && cached.expires > now 
+                    && cached.username.equals(username)) {
+                hits.incrementAndGet();
+                return true;
+            }
+        }
+        
+        misses.incrementAndGet();
+        return false;
+    }
+    
+    public void verified(String username, String header) {
+        String digest = digest(header);
+        long expires = System.currentTimeMillis() + TTL;
+        
+        synchronized (cache) {
+            cache.put(digest, new CachedCredential(username, expires));
+        }
+    }
+    
+    public long getHits() {
+        return hits.get();
+    }
+    
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    private String digest(String header) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(digestKey);
+            return new String(Hex.encodeHex(mac.doFinal(header.getBytes(UTF8))));
+        } catch (Exception ex) {
+            throw new RuntimeException("Bad configuration", ex);
+        }
+    }
+    
+    private static class CachedCredential {
+        
+        private String username;
+        
+        private long expires;
+
+        public CachedCredential(String username, long expires) {
+            this.username = username;
+            this.expires = expires;
+        }
+        
+    }
+    
+}
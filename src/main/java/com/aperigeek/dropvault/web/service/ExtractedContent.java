@@ -0,0 +1,71 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service;
+
+import java.io.CharArrayReader;
+import java.io.Reader;
+import java.util.Map;
+
+/**
+ * Text and metadata extracted from a file.
+ *
+ * @author Vivien Barousse
+ */
+public class ExtractedContent {
+    
+    private Map<String, String> metadata;
+    
+    private char[] body;
+    
+    private int length;
+    
+    private boolean truncated;
+
+    public ExtractedContent(Map<String, String> metadata, char[] body, 
+            int length, boolean truncated) {
+        this.metadata = metadata;
+        this.body = body;
+        this.length = length;
+        this.truncated = truncated;
+    }
+
+    /**
+     * Metadata fields to index, such as title or author.
+     */
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Reads the extracted text, without copying it.
+     */
+    public Reader getBody() {
+        return new CharArrayReader(body, 0, length);
+    }
+
+    public int getBodyLength() {
+        return length;
+    }
+
+    /**
+     * Whether the text has been cut at the character limit of its type.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+    
+}
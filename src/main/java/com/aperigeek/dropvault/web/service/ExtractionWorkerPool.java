@@ -0,0 +1,309 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service;
+
+import com.aperigeek.dropvault.web.service.extraction.ExtractionWorker;
+import com.aperigeek.dropvault.web.service.extraction.WorkerProcess;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.Parser;
+
+/**
+ * Runs content extraction in separate JVMs.
+ * 
+ * A file that makes a parser exhaust its memory or loop forever only 
+ * takes its worker down. Workers have a bounded heap, are killed when a 
+ * file takes too long, and are replaced when needed. The time spent 
+ * sending large files does not count, only the time the worker spends
+ * without reading. They are also 
+ * replaced after a number of files, to recover from leaks in the parsers.
+ *
+ * @author Vivien Barousse
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class ExtractionWorkerPool {
+    
+    private static final Logger log = Logger.getLogger(ExtractionWorkerPool.class.getName());
+    
+    // TODO: export to configuration file
+    private static final int POOL_SIZE = 2;
+    
+    // TODO: export to configuration file
+    private static final String WORKER_HEAP = "256m";
+    
+    // TODO: export to configuration file
+    private static final long JOB_TIMEOUT = 2 * 60 * 1000; // 2 minutes
+    
+    // TODO: export to configuration file
+    private static final int MAX_JOBS_PER_WORKER = 1000;
+    
+    /**
+     * Class path of the workers, detected from the location of the 
+     * application's classes and libraries when null.
+     */
+    // TODO: export to configuration file
+    private static final String WORKER_CLASSPATH = null;
+    
+    private final BlockingQueue<WorkerProcess> idle = new LinkedBlockingQueue<WorkerProcess>();
+    
+    private final Semaphore permits = new Semaphore(POOL_SIZE, true);
+    
+    private final AtomicLong jobs = new AtomicLong();
+    
+    private final AtomicLong timeouts = new AtomicLong();
+    
+    private final AtomicLong crashes = new AtomicLong();
+    
+    private final AtomicLong startedWorkers = new AtomicLong();
+    
+    private List<String> command;
+    
+    private ScheduledExecutorService watchdog;
+    
+    @PostConstruct
+    protected void init() {
+        command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.add("-Xmx" + WORKER_HEAP);
+        command.add("-Djava.awt.headless=true");
+        command.add("-cp");
+        command.add(WORKER_CLASSPATH != null ? WORKER_CLASSPATH : detectClassPath());
+        command.add(ExtractionWorker.class.getName());
+        log.log(Level.FINE, "Extraction worker command: {0}", command);
+        
+        watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "dropvault-extraction-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    @PreDestroy
+    protected void stop() {
+        watchdog.shutdownNow();
+        Iterator<WorkerProcess> it = idle.iterator();
+        while (it.hasNext()) {
+            it.next().kill();
+            it.remove();
+        }
+    }
+    
+    /**
+     * Extracts a file in a worker, waiting for one to be available.
+     * 
+     * @param fileName Name of the file
+     * @param data Content of the file
+     * @param contentType Type of the file, may be null
+     * @param maxChars Maximum number of characters extracted
+     * @return Extracted content
+     */
+    public ExtractedContent extract(String fileName, InputStream data, 
+            String contentType, int maxChars) throws ContentExtractionException {
+        
+        try {
+            permits.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ContentExtractionException("Interrupted while waiting for an extraction worker", ex);
+        }
+        
+        WorkerProcess worker = null;
+        boolean reusable = false;
+        try {
+            worker = idle.poll();
+            if (worker == null) {
+                worker = new WorkerProcess(command);
+                startedWorkers.incrementAndGet();
+            }
+            
+            Timeout timeout = new Timeout(worker);
+            timeout.start();
+            try {
+                jobs.incrementAndGet();
+                ExtractedContent content = worker.extract(fileName, data, contentType, maxChars);
+                reusable = true;
+                return content;
+            } catch (ContentExtractionException ex) {
+                // The file could not be parsed, the worker itself is fine
+                reusable = true;
+                throw ex;
+            } finally {
+                timeout.cancel();
+            }
+        } catch (IOException ex) {
+            if (worker != null && worker.isKilled()) {
+                timeouts.incrementAndGet();
+                throw new ContentExtractionException("Extraction of " + fileName + " timed out", ex);
+            }
+            crashes.incrementAndGet();
+            throw new ContentExtractionException("Extraction worker failed", ex);
+        } finally {
+            if (worker != null) {
+                if (reusable && !worker.isKilled() 
+                        && worker.getJobs() < MAX_JOBS_PER_WORKER) {
+                    idle.offer(worker);
+                } else {
+                    worker.kill();
+                }
+            }
+            permits.release();
+        }
+    }
+    
+    public long getJobs() {
+        return jobs.get();
+    }
+    
+    /**
+     * Number of files whose extraction was stopped because it took too long.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+    
+    /**
+     * Number of workers that exited or stopped answering unexpectedly.
+     */
+    public long getCrashes() {
+        return crashes.get();
+    }
+    
+    public long getStartedWorkers() {
+        return startedWorkers.get();
+    }
+    
+    /**
+     * Kills a worker once it did not accept any content for 
+     * {@link #JOB_TIMEOUT}, or did not answer within that time once the
+     * whole content was sent.
+     */
+    private class Timeout implements Runnable {
+        
+        private final WorkerProcess worker;
+        
+        private ScheduledFuture<?> future;
+        
+        private boolean cancelled;
+
+        public Timeout(WorkerProcess worker) {
+            this.worker = worker;
+        }
+        
+        public synchronized void start() {
+            future = watchdog.schedule(this, JOB_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        
+        public synchronized void cancel() {
+            cancelled = true;
+            future.cancel(false);
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                long inactive = System.currentTimeMillis() - worker.getLastActivity();
+                if (inactive < JOB_TIMEOUT) {
+                    future = watchdog.schedule(this, JOB_TIMEOUT - inactive, 
+                            TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            log.log(Level.WARNING, "Killing {0}, extraction timed out", worker);
+            worker.kill();
+        }
+        
+    }
+    
+    /**
+     * Builds the class path of the workers from the location of the 
+     * worker and parser classes, including all the libraries next to them.
+     */
+    private String detectClassPath() {
+        Set<String> entries = new LinkedHashSet<String>();
+        Class<?>[] classes = {ExtractionWorker.class, AutoDetectParser.class, Parser.class};
+        for (Class<?> c : classes) {
+            CodeSource source = c.getProtectionDomain().getCodeSource();
+            if (source == null || source.getLocation() == null) {
+                continue;
+            }
+            
+            File location;
+            try {
+                location = new File(source.getLocation().toURI());
+            } catch (URISyntaxException ex) {
+                log.log(Level.WARNING, "Unsupported class location: {0}", source.getLocation());
+                continue;
+            } catch (IllegalArgumentException ex) {
+                log.log(Level.WARNING, "Unsupported class location: {0}", source.getLocation());
+                continue;
+            }
+            
+            if (location.isDirectory()) {
+                entries.add(location.getPath());
+                // WEB-INF/classes, with the libraries in WEB-INF/lib
+                File lib = new File(location.getParentFile(), "lib");
+                if (location.getName().equals("classes") && lib.isDirectory()) {
+                    entries.add(lib.getPath() + File.separator + "*");
+                }
+            } else {
+                entries.add(location.getParent() + File.separator + "*");
+            }
+        }
+        
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : entries) {
+            if (classPath.length() > 0) {
+                classPath.append(File.pathSeparator);
+            }
+            classPath.append(entry);
+        }
+        return classPath.toString();
+    }
+    
+}
@@ -16,40 +16,114 @@
  */
 package com.aperigeek.dropvault.web.service;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.ejb.Stateless;
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
 import org.apache.tika.Tika;
+import org.apache.tika.mime.MimeTypes;
 
 /**
  *
  * @author Vivien Barousse
  */
-@Stateless
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
 public class FileTypeDetectionService {
 
     private static final Logger logger = Logger.getLogger(FileTypeDetectionService.class.getName());
 
+    /**
+     * Number of bytes of content looked at to determine its type.
+     */
+    public static final int PREFIX_LENGTH = MimeTypes.getDefaultMimeTypes().getMinLength();
+    
+    private final AtomicLong detections = new AtomicLong();
+    
+    private final AtomicLong detectionTime = new AtomicLong();
+    
+    /**
+     * Tika facade, thread-safe and expensive to create: it loads the MIME 
+     * types repository and the available parsers.
+     */
+    private Tika tika;
+    
+    @PostConstruct
+    protected void init() {
+        long start = System.currentTimeMillis();
+        tika = new Tika();
+        logger.log(Level.INFO, "Content type detection initialized in {0} ms", 
+                System.currentTimeMillis() - start);
+    }
+
     /**
      * Tries to determine the content type of a given file depending on its 
-     * content and name.
+     * name and content.
+     * 
+     * Files with a known extension are typed from their name only. Otherwise,
+     * only the first {@link #PREFIX_LENGTH} bytes of the content are read, 
+     * and the stream is reset to its initial position.
      * 
      * The detection process is delegated to the Apache Tika library.
      * 
      * @param name File name
-     * @param data File content
+     * @param data File content, must support mark and reset
      * @return Detected file type
      */
-    public String detectFileType(String name, InputStream data) {
-        Tika tika = new Tika();
+    public String detectFileType(String name, InputStream data) throws IOException {
+        long start = System.nanoTime();
         try {
-            return tika.detect(data, name);
-        } catch (IOException ex) {
-            throw new RuntimeException(
-                    "IO exception during manipulation of byte array. Weird...",
-                    ex);
+            return detect(name, data);
+        } finally {
+            detections.incrementAndGet();
+            detectionTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+    
+    private String detect(String name, InputStream data) throws IOException {
+        String type = tika.detect(name);
+        if (!MimeTypes.OCTET_STREAM.equals(type)) {
+            return type;
         }
+        
+        if (!data.markSupported()) {
+            throw new IllegalArgumentException("Stream must support mark");
+        }
+        
+        byte[] prefix = new byte[PREFIX_LENGTH];
+        int length = 0;
+        data.mark(PREFIX_LENGTH);
+        try {
+            int read;
+            while (length < prefix.length 
+                    && (read = data.read(prefix, length, prefix.length - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            data.reset();
+        }
+        
+        return tika.detect(Arrays.copyOf(prefix, length), name);
+    }
+
+    public long getDetections() {
+        return detections.get();
+    }
+    
+    /**
+     * @return Average time spent detecting a content type, in microseconds
+     */
+    public long getAverageDetectionTime() {
+        long count = detections.get();
+        return count == 0 ? 0 : detectionTime.get() / count / 1000;
     }
+    
 }
@@ -0,0 +1,89 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service;
+
+/**
+ * Unit of work executed by the {@link IndexingQueue}.
+ * 
+ * Jobs are queued per user, and jobs of a given user are executed one at a 
+ * time, in submission order.
+ * 
+ * Coalescable jobs are delayed until no other job was submitted for the 
+ * same resource for some time, and only the latest one is executed. They 
+ * must read the state of the resource when executed rather than when 
+ * submitted.
+ *
+ * @author Vivien Barousse
+ */
+public abstract class IndexJob {
+    
+    private String username;
+    
+    private String resourceId;
+    
+    private boolean coalescable;
+    
+    private int attempts;
+    
+    private long submissionTime;
+
+    public IndexJob(String username, String resourceId) {
+        this(username, resourceId, false);
+    }
+
+    public IndexJob(String username, String resourceId, boolean coalescable) {
+        this.username = username;
+        this.resourceId = resourceId;
+        this.coalescable = coalescable;
+    }
+    
+    public abstract void execute() throws Exception;
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    public boolean isCoalescable() {
+        return coalescable;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    long getSubmissionTime() {
+        return submissionTime;
+    }
+
+    void setSubmissionTime(long submissionTime) {
+        this.submissionTime = submissionTime;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + username + ", " + resourceId + "]";
+    }
+    
+}
@@ -16,27 +16,19 @@
  */
 package com.aperigeek.dropvault.web.service;
 
-import com.aperigeek.dropvault.web.service.index.CipherDirectory;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import com.aperigeek.dropvault.web.service.IndexWriterPool.UserIndex;
+import com.aperigeek.dropvault.web.service.index.SearchAfterCollector;
 import java.io.IOException;
-import java.security.KeyStore;
-import java.security.KeyStore.SecretKeyEntry;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import javax.crypto.KeyGenerator;
-import javax.crypto.SecretKey;
+import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.MultiFieldQueryParser;
 import org.apache.lucene.queryParser.ParseException;
@@ -44,8 +36,6 @@ import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.Version;
 
 /**
@@ -55,25 +45,38 @@ import org.apache.lucene.util.Version;
 @Stateless
 public class IndexService {
     
-    private static final File INDEX_FOLDER = new File("/home/dropvault/indexes");
+    @EJB
+    private SecretKeyService keyService;
     
-    private static final File secretsFolder = new File("/home/dropvault/secret");
+    @EJB
+    private IndexWriterPool writerPool;
     
+    /**
+     * Indexes a file. Its text is read from the extracted content as it is
+     * indexed, and is not stored.
+     */
     public void index(String username, String password, 
-            String id, Map<String, String> metadata) throws IndexException {
+            String id, ExtractedContent content) throws IndexException {
         try {
             Document document = new Document();
             document.add(new Field("id", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
-            for (Map.Entry<String, String> e : metadata.entrySet()) {
+            for (Map.Entry<String, String> e : content.getMetadata().entrySet()) {
                 if (e.getValue() != null) {
                     document.add(new Field(e.getKey(), e.getValue(), 
                             Field.Store.NO, Field.Index.ANALYZED));
                 }
             }
+            if (content.getBodyLength() > 0) {
+                document.add(new Field("body", content.getBody()));
+            }
             
-            IndexWriter index = getIndexWriter(username, password);
-            index.addDocument(document);
-            index.close();
+            UserIndex index = getIndex(username, password);
+            try {
+                index.getWriter().addDocument(document);
+                index.updated();
+            } finally {
+                writerPool.release(index);
+            }
         } catch (IOException ex) {
             throw new IndexException(ex);
         }
@@ -81,27 +84,88 @@ public class IndexService {
     
     public void remove(String username, String password, String id) throws IndexException {
         try {
-            IndexWriter writer = getIndexWriter(username, password);
-            writer.deleteDocuments(new Term("id", id));
-            writer.close();
+            UserIndex index = getIndex(username, password);
+            try {
+                index.getWriter().deleteDocuments(new Term("id", id));
+                index.updated();
+            } finally {
+                writerPool.release(index);
+            }
+        } catch (IOException ex) {
+            throw new IndexException(ex);
+        }
+    }
+    
+    /**
+     * Removes several documents from the index of a user, in a single 
+     * writer session.
+     */
+    public void remove(String username, String password, Collection<String> ids) throws IndexException {
+        try {
+            UserIndex index = getIndex(username, password);
+            try {
+                Term[] terms = new Term[ids.size()];
+                int i = 0;
+                for (String id : ids) {
+                    terms[i++] = new Term("id", id);
+                }
+                index.getWriter().deleteDocuments(terms);
+                index.updated();
+            } finally {
+                writerPool.release(index);
+            }
         } catch (IOException ex) {
             throw new IndexException(ex);
         }
     }
     
-    public List<String> search(String username, String password, String query) throws IndexException {
+    /**
+     * Searches the index of a user.
+     * 
+     * @param query Query, in Lucene query syntax
+     * @param offset Number of hits to skip, after the cursor if any
+     * @param limit Maximum number of hits to return
+     * @param cursor Cursor returned with the previous page, or null
+     * @return Page of results
+     * @throws IllegalArgumentException If the cursor is invalid
+     */
+    public SearchResults search(String username, String password, String query,
+            int offset, int limit, String cursor) throws IndexException {
+        
+        ScoreDoc after = cursor == null ? null : parseCursor(cursor);
+        
         try {
-            IndexSearcher searcher = getIndexSearcher(username, password);
             Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_33);
             QueryParser parser = new MultiFieldQueryParser(Version.LUCENE_33, new String[]{"title", "body"}, analyzer);
             Query luceneQuery = parser.parse(query);
-            TopDocs docs = searcher.search(luceneQuery, 10);
-            List<String> results = new ArrayList<String>();
-            for (ScoreDoc doc : docs.scoreDocs) {
-                results.add(searcher.doc(doc.doc).getFieldable("id").stringValue());
+            
+            UserIndex index = getIndex(username, password);
+            try {
+                IndexSearcher searcher = index.acquireSearcher();
+                try {
+                    SearchAfterCollector collector = 
+                            new SearchAfterCollector(after, offset + limit);
+                    searcher.search(luceneQuery, collector);
+                    
+                    ScoreDoc[] docs = collector.getHits();
+                    List<SearchResults.Hit> hits = new ArrayList<SearchResults.Hit>();
+                    for (int i = offset; i < docs.length; i++) {
+                        String id = searcher.doc(docs[i].doc).getFieldable("id").stringValue();
+                        hits.add(new SearchResults.Hit(id, docs[i].score));
+                    }
+                    
+                    String next = null;
+                    if (collector.getRemainingHits() > offset + limit) {
+                        next = toCursor(docs[docs.length - 1]);
+                    }
+                    
+                    return new SearchResults(collector.getTotalHits(), hits, next);
+                } finally {
+                    index.releaseSearcher(searcher);
+                }
+            } finally {
+                writerPool.release(index);
             }
-            searcher.close();
-            return results;
         } catch (IOException ex) {
             throw new IndexException(ex);
         } catch (ParseException ex) {
@@ -109,61 +173,33 @@ public class IndexService {
         }
     }
     
-    private IndexSearcher getIndexSearcher(String username, String password) throws IOException {
-        IndexSearcher searcher = new IndexSearcher(getDirectory(username, password));
-        return searcher;
-    }
-    
-    private IndexWriter getIndexWriter(String username, String password) throws IOException {
-        Analyzer analyser = new StandardAnalyzer(Version.LUCENE_33);
-        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_33, analyser);
-        IndexWriter writer = new IndexWriter(getDirectory(username, password), config);
-        return writer;
+    /*
+     * Cursors hold the score and document number of the last hit of a page.
+     * Document numbers may change when segments are merged, pages following
+     * a merge may then skip or repeat some hits.
+     */
+    private String toCursor(ScoreDoc doc) {
+        return Integer.toString(doc.doc, 36) + "." 
+                + Integer.toString(Float.floatToIntBits(doc.score), 36);
     }
     
-    private Directory getDirectory(String username, String password) throws IOException {
-        File userIndex = new File(INDEX_FOLDER, username);
-        if (!userIndex.exists()) {
-            userIndex.mkdirs();
+    private ScoreDoc parseCursor(String cursor) {
+        int dot = cursor.indexOf('.');
+        if (dot == -1) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
         }
-        Directory directory = new CipherDirectory(userIndex, getSecretKey(username, password.toCharArray()));
-        return directory;
-    }
-    
-    protected SecretKey getSecretKey(String username, char[] password) {
         try {
-            KeyStore store = getKeyStore(username, password);
-            SecretKeyEntry entry = (SecretKeyEntry) store.getEntry(username, new KeyStore.PasswordProtection(password));
-            return entry.getSecretKey();
-        } catch (Exception ex) {
-            // TODO: better exception handling
-            throw new RuntimeException(ex);
+            int doc = Integer.parseInt(cursor.substring(0, dot), 36);
+            int score = Integer.parseInt(cursor.substring(dot + 1), 36);
+            return new ScoreDoc(doc, Float.intBitsToFloat(score));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor, ex);
         }
     }
     
-    protected KeyStore getKeyStore(String username, char[] password) {
-        try {
-            File keyStoreFile = new File(secretsFolder, username + ".jks");
-            KeyStore keyStore = KeyStore.getInstance("JCEKS");
-            if (keyStoreFile.exists()) {
-                keyStore.load(new FileInputStream(keyStoreFile), password);
-                return keyStore;
-            } else {
-                KeyGenerator gen = KeyGenerator.getInstance("Blowfish");
-                SecretKey key = gen.generateKey();
-                
-                keyStore.load(null, password);
-                keyStore.setEntry(username, new SecretKeyEntry(key), new KeyStore.PasswordProtection(password));
-                
-                keyStore.store(new FileOutputStream(keyStoreFile), password);
-                
-                return keyStore;
-            }
-        } catch (Exception ex) {
-            // TODO: better exception handling
-            Logger.getAnonymousLogger().log(Level.SEVERE, "ERROR", ex);
-            throw new RuntimeException(ex);
-        }
+    private UserIndex getIndex(String username, String password) throws IOException {
+        return writerPool.get(username, 
+                keyService.getSecretKey(username, password.toCharArray()));
     }
     
 }
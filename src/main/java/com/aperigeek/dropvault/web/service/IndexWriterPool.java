@@ -0,0 +1,300 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service;
+
+import com.aperigeek.dropvault.web.service.index.CipherDirectory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.SecretKey;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Keeps the indexes of active users open.
+ * 
+ * Each open index holds a single writer, committed periodically or after
+ * a given number of updates, and a near-real-time reader shared by all 
+ * searches and reopened only when the index changed. Indexes unused for
+ * some time are closed.
+ *
+ * @author Vivien Barousse
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class IndexWriterPool {
+    
+    private static final Logger log = Logger.getLogger(IndexWriterPool.class.getName());
+    
+    private static final File INDEX_FOLDER = new File("/home/dropvault/indexes");
+    
+    // TODO: export to configuration file
+    private static final int COMMIT_BATCH_SIZE = 100;
+    
+    // TODO: export to configuration file
+    private static final long COMMIT_INTERVAL = 30 * 1000; // 30 seconds
+    
+    // TODO: export to configuration file
+    private static final long IDLE_TIMEOUT = 10 * 60 * 1000; // 10 minutes
+    
+    private final Map<String, UserIndex> indexes = new HashMap<String, UserIndex>();
+    
+    /**
+     * Users whose idle index is being closed. Their index can't be reopened
+     * before the writer released its lock.
+     */
+    private final Set<String> closing = new HashSet<String>();
+    
+    private ScheduledExecutorService scheduler;
+    
+    @PostConstruct
+    protected void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "dropvault-index-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                maintain();
+            }
+        }, COMMIT_INTERVAL, COMMIT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    protected void stop() {
+        scheduler.shutdownNow();
+        synchronized (indexes) {
+            for (UserIndex index : indexes.values()) {
+                close(index);
+            }
+            indexes.clear();
+        }
+    }
+    
+    /**
+     * Returns the index of a user, opening it if required.
+     * 
+     * Every call must be followed by a call to 
+     * {@link #release(UserIndex)} once the index is no longer used.
+     * 
+     * @param username Owner of the index
+     * @param key Key used to encrypt the index
+     * @return The user's index
+     */
+    public UserIndex get(String username, SecretKey key) throws IOException {
+        synchronized (indexes) {
+            while (closing.contains(username)) {
+                try {
+                    indexes.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            UserIndex index = indexes.get(username);
+            if (index == null) {
+                index = new UserIndex(openWriter(username, key));
+                indexes.put(username, index);
+            }
+            index.users++;
+            index.lastAccess = System.currentTimeMillis();
+            return index;
+        }
+    }
+    
+    public void release(UserIndex index) {
+        synchronized (indexes) {
+            index.users--;
+            index.lastAccess = System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * Number of indexes currently open.
+     */
+    public int getOpenIndexes() {
+        synchronized (indexes) {
+            return indexes.size();
+        }
+    }
+    
+    protected void maintain() {
+        long now = System.currentTimeMillis();
+        Map<String, UserIndex> idle = new HashMap<String, UserIndex>();
+        List<UserIndex> active = new ArrayList<UserIndex>();
+        
+        // Commits and closes are slow, only select the indexes under the 
+        // lock so that other users' requests are not held up
+        synchronized (indexes) {
+            Iterator<Map.Entry<String, UserIndex>> it = indexes.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, UserIndex> entry = it.next();
+                UserIndex index = entry.getValue();
+                if (index.users == 0 && now - index.lastAccess > IDLE_TIMEOUT) {
+                    idle.put(entry.getKey(), index);
+                    it.remove();
+                } else {
+                    active.add(index);
+                }
+            }
+            closing.addAll(idle.keySet());
+        }
+        
+        try {
+            for (UserIndex index : idle.values()) {
+                close(index);
+            }
+        } finally {
+            synchronized (indexes) {
+                closing.removeAll(idle.keySet());
+                indexes.notifyAll();
+            }
+        }
+        
+        for (UserIndex index : active) {
+            try {
+                index.commit();
+            } catch (IOException ex) {
+                log.log(Level.SEVERE, "Index commit failed", ex);
+            }
+        }
+    }
+    
+    private void close(UserIndex index) {
+        try {
+            index.close();
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, "Unable to close index", ex);
+        }
+    }
+    
+    private IndexWriter openWriter(String username, SecretKey key) throws IOException {
+        File userIndex = new File(INDEX_FOLDER, username);
+        if (!userIndex.exists()) {
+            userIndex.mkdirs();
+        }
+        Directory directory = new CipherDirectory(userIndex, key);
+        
+        Analyzer analyser = new StandardAnalyzer(Version.LUCENE_33);
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_33, analyser);
+        return new IndexWriter(directory, config);
+    }
+    
+    public static class UserIndex {
+        
+        private final IndexWriter writer;
+        
+        private IndexReader reader;
+        
+        private boolean changed;
+        
+        private int pending;
+        
+        private int users;
+        
+        private long lastAccess;
+
+        private UserIndex(IndexWriter writer) throws IOException {
+            this.writer = writer;
+            this.reader = IndexReader.open(writer, true);
+        }
+
+        public IndexWriter getWriter() {
+            return writer;
+        }
+        
+        /**
+         * Must be called after each update made through the writer.
+         */
+        public synchronized void updated() throws IOException {
+            changed = true;
+            pending++;
+            if (pending >= COMMIT_BATCH_SIZE) {
+                commit();
+            }
+        }
+        
+        /**
+         * Returns a searcher reflecting all the updates made so far.
+         * 
+         * Searchers must be released using 
+         * {@link #releaseSearcher(IndexSearcher)}.
+         */
+        public synchronized IndexSearcher acquireSearcher() throws IOException {
+            if (changed) {
+                IndexReader newReader = reader.reopen();
+                if (newReader != reader) {
+                    reader.decRef();
+                    reader = newReader;
+                }
+                changed = false;
+            }
+            reader.incRef();
+            return new IndexSearcher(reader);
+        }
+        
+        public void releaseSearcher(IndexSearcher searcher) throws IOException {
+            searcher.getIndexReader().decRef();
+        }
+        
+        private synchronized void commit() throws IOException {
+            if (pending > 0) {
+                writer.commit();
+                pending = 0;
+            }
+        }
+        
+        private synchronized void close() throws IOException {
+            try {
+                reader.decRef();
+            } finally {
+                writer.close();
+            }
+        }
+        
+    }
+    
+}
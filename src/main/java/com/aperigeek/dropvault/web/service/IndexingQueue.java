@@ -0,0 +1,566 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+
+/**
+ * Executes indexing jobs in the background on a fixed number of workers.
+ * 
+ * The queue is bounded. Pending jobs are kept in one queue per user, and
+ * workers serve users in a round-robin fashion so that a bulk upload from
+ * one user does not delay indexing for the others. A user's jobs are never
+ * executed concurrently, which also avoids contention on their index.
+ * 
+ * Failed jobs are retried a few times after a delay before being dropped.
+ * 
+ * Coalescable jobs wait for a quiet period without other jobs for the same
+ * resource, up to a maximum delay, so that a file saved repeatedly is 
+ * indexed once. They are also dropped when the same job is already 
+ * waiting in the queue, as it will index the latest content anyway.
+ *
+ * @author Vivien Barousse
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class IndexingQueue {
+    
+    /**
+     * What to do with a job submitted while the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for some room in the queue, and drop the job on timeout.
+         */
+        BLOCK,
+        /**
+         * Execute the job in the submitting thread, slowing down the client.
+         * The thread first waits for the user's pending jobs, so that they
+         * are still executed one at a time and in order.
+         */
+        CALLER_RUNS,
+        /**
+         * Drop the job.
+         */
+        DISCARD;
+    }
+    
+    private static final Logger log = Logger.getLogger(IndexingQueue.class.getName());
+    
+    // TODO: export to configuration file
+    private static final int WORKERS = 2;
+    
+    // TODO: export to configuration file
+    private static final int MAX_QUEUE_SIZE = 1000;
+    
+    // TODO: export to configuration file
+    private static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+    
+    // TODO: export to configuration file
+    private static final long BLOCK_TIMEOUT = 30 * 1000; // 30 seconds
+    
+    // TODO: export to configuration file
+    private static final int MAX_ATTEMPTS = 3;
+    
+    // TODO: export to configuration file
+    private static final long RETRY_DELAY = 10 * 1000; // 10 seconds
+    
+    // TODO: export to configuration file
+    private static final long QUIET_PERIOD = 5 * 1000; // 5 seconds
+    
+    // TODO: export to configuration file
+    private static final long MAX_COALESCING_DELAY = 60 * 1000; // 1 minute
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    private final Condition notEmpty = lock.newCondition();
+    
+    private final Condition notFull = lock.newCondition();
+    
+    /*
+     * Signaled whenever a user's job completes.
+     */
+    private final Condition jobDone = lock.newCondition();
+    
+    private final Map<String, LinkedList<IndexJob>> queues = 
+            new HashMap<String, LinkedList<IndexJob>>();
+    
+    /*
+     * Users with pending jobs and no running job, in the order they 
+     * should be served.
+     */
+    private final LinkedList<String> ready = new LinkedList<String>();
+    
+    private final Set<String> running = new HashSet<String>();
+    
+    /*
+     * Coalescable jobs waiting for their quiet period, by resource.
+     */
+    private final Map<String, DelayedJob> delayed = new HashMap<String, DelayedJob>();
+    
+    /*
+     * Resources with a coalescable job in the queues.
+     */
+    private final Set<String> queued = new HashSet<String>();
+    
+    private int size;
+    
+    private boolean stopped;
+    
+    private Thread[] workers;
+    
+    private ScheduledExecutorService timer;
+    
+    private final AtomicLong submitted = new AtomicLong();
+    
+    private final AtomicLong completed = new AtomicLong();
+    
+    private final AtomicLong failed = new AtomicLong();
+    
+    private final AtomicLong retried = new AtomicLong();
+    
+    private final AtomicLong rejected = new AtomicLong();
+    
+    private final AtomicLong coalesced = new AtomicLong();
+    
+    private final AtomicLong waitTime = new AtomicLong();
+    
+    private final AtomicLong runTime = new AtomicLong();
+    
+    @PostConstruct
+    protected void start() {
+        timer = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("dropvault-indexing-timer"));
+        
+        ThreadFactory factory = new NamedThreadFactory("dropvault-indexing");
+        workers = new Thread[WORKERS];
+        for (int i = 0; i < WORKERS; i++) {
+            workers[i] = factory.newThread(new Worker());
+            workers[i].start();
+        }
+    }
+    
+    @PreDestroy
+    protected void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            jobDone.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        timer.shutdownNow();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+    
+    /**
+     * Submits a job for background execution.
+     * 
+     * If the queue is full, the job is handled according to the configured
+     * overflow policy. A coalescable job replaces the delayed job for the 
+     * same resource, if any.
+     * 
+     * @param job Job to execute
+     */
+    public void submit(IndexJob job) {
+        job.setSubmissionTime(System.nanoTime());
+        submitted.incrementAndGet();
+        
+        lock.lock();
+        try {
+            if (job.isCoalescable() && coalesce(job)) {
+                return;
+            }
+            
+            if (size >= MAX_QUEUE_SIZE && !stopped) {
+                switch (OVERFLOW_POLICY) {
+                    case CALLER_RUNS:
+                        String username = job.getUsername();
+                        while ((running.contains(username) || queues.containsKey(username)) 
+                                && !stopped) {
+                            jobDone.await();
+                        }
+                        if (stopped) {
+                            rejected.incrementAndGet();
+                            return;
+                        }
+                        running.add(username);
+                        lock.unlock();
+                        try {
+                            run(job);
+                        } finally {
+                            lock.lock();
+                            done(job);
+                        }
+                        return;
+                    case BLOCK:
+                        long remaining = TimeUnit.MILLISECONDS.toNanos(BLOCK_TIMEOUT);
+                        while (size >= MAX_QUEUE_SIZE && remaining > 0 && !stopped) {
+                            remaining = notFull.awaitNanos(remaining);
+                        }
+                        if (size >= MAX_QUEUE_SIZE) {
+                            rejected.incrementAndGet();
+                            log.log(Level.WARNING, "Indexing queue full, dropping {0}", job);
+                            return;
+                        }
+                        break;
+                    default:
+                        rejected.incrementAndGet();
+                        log.log(Level.WARNING, "Indexing queue full, dropping {0}", job);
+                        return;
+                }
+            }
+            
+            if (job.isCoalescable()) {
+                delay(job);
+            } else {
+                enqueue(job);
+            }
+        } catch (InterruptedException ex) {
+            rejected.incrementAndGet();
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Number of jobs waiting to be executed, including delayed jobs.
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getSubmitted() {
+        return submitted.get();
+    }
+    
+    public long getCompleted() {
+        return completed.get();
+    }
+    
+    public long getFailed() {
+        return failed.get();
+    }
+    
+    public long getRetried() {
+        return retried.get();
+    }
+    
+    public long getRejected() {
+        return rejected.get();
+    }
+    
+    /**
+     * Number of jobs dropped because a later job for the same resource 
+     * replaced them.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+    
+    /**
+     * Average time spent by jobs in the queue, in milliseconds.
+     */
+    public long getAverageWaitTime() {
+        long count = completed.get() + failed.get() + retried.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitTime.get() / count);
+    }
+    
+    /**
+     * Average execution time of jobs, in milliseconds.
+     */
+    public long getAverageRunTime() {
+        long count = completed.get() + failed.get() + retried.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(runTime.get() / count);
+    }
+    
+    /*
+     * Must be called with the lock held.
+     */
+    private void enqueue(IndexJob job) {
+        size++;
+        append(job);
+    }
+    
+    /*
+     * Adds a job, already counted in the queue size, to its user's queue.
+     * Must be called with the lock held.
+     */
+    private void append(IndexJob job) {
+        if (job.isCoalescable() && !queued.add(getKey(job))) {
+            size--;
+            coalesced.incrementAndGet();
+            notFull.signal();
+            return;
+        }
+        
+        String username = job.getUsername();
+        LinkedList<IndexJob> queue = queues.get(username);
+        if (queue == null) {
+            queue = new LinkedList<IndexJob>();
+            queues.put(username, queue);
+        }
+        queue.add(job);
+        
+        if (queue.size() == 1 && !running.contains(username)) {
+            ready.add(username);
+            notEmpty.signal();
+        }
+    }
+    
+    /*
+     * Replaces the delayed job for the same resource, postponing it.
+     * Must be called with the lock held.
+     */
+    private boolean coalesce(IndexJob job) {
+        DelayedJob pending = delayed.get(getKey(job));
+        if (pending == null) {
+            return false;
+        }
+        
+        pending.job = job;
+        pending.deadline = Math.min(
+                job.getSubmissionTime() + TimeUnit.MILLISECONDS.toNanos(QUIET_PERIOD), 
+                pending.firstSubmission + TimeUnit.MILLISECONDS.toNanos(MAX_COALESCING_DELAY));
+        coalesced.incrementAndGet();
+        return true;
+    }
+    
+    /*
+     * Must be called with the lock held.
+     */
+    private void delay(IndexJob job) {
+        String key = getKey(job);
+        DelayedJob pending = new DelayedJob();
+        pending.job = job;
+        pending.firstSubmission = job.getSubmissionTime();
+        pending.deadline = job.getSubmissionTime() 
+                + TimeUnit.MILLISECONDS.toNanos(QUIET_PERIOD);
+        delayed.put(key, pending);
+        size++;
+        
+        scheduleRelease(key, QUIET_PERIOD, TimeUnit.MILLISECONDS);
+    }
+    
+    private void scheduleRelease(final String key, long delay, TimeUnit unit) {
+        if (stopped) {
+            return;
+        }
+        timer.schedule(new Runnable() {
+            public void run() {
+                release(key);
+            }
+        }, delay, unit);
+    }
+    
+    /*
+     * Queues a delayed job once its quiet period is over.
+     */
+    private void release(String key) {
+        lock.lock();
+        try {
+            DelayedJob pending = delayed.get(key);
+            if (pending == null) {
+                return;
+            }
+            
+            long remaining = pending.deadline - System.nanoTime();
+            if (remaining > 0) {
+                scheduleRelease(key, remaining, TimeUnit.NANOSECONDS);
+                return;
+            }
+            
+            delayed.remove(key);
+            pending.job.setSubmissionTime(System.nanoTime());
+            append(pending.job);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private String getKey(IndexJob job) {
+        return job.getUsername() + "/" + job.getResourceId();
+    }
+    
+    private IndexJob take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (ready.isEmpty() && !stopped) {
+                notEmpty.await();
+            }
+            if (stopped) {
+                return null;
+            }
+            
+            String username = ready.removeFirst();
+            LinkedList<IndexJob> queue = queues.get(username);
+            IndexJob job = queue.removeFirst();
+            if (queue.isEmpty()) {
+                queues.remove(username);
+            }
+            if (job.isCoalescable()) {
+                queued.remove(getKey(job));
+            }
+            running.add(username);
+            size--;
+            notFull.signal();
+            
+            return job;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void done(IndexJob job) {
+        lock.lock();
+        try {
+            String username = job.getUsername();
+            running.remove(username);
+            if (queues.containsKey(username)) {
+                ready.add(username);
+                notEmpty.signal();
+            }
+            jobDone.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void run(final IndexJob job) {
+        long start = System.nanoTime();
+        waitTime.addAndGet(start - job.getSubmissionTime());
+        job.setAttempts(job.getAttempts() + 1);
+        
+        try {
+            job.execute();
+            completed.incrementAndGet();
+        } catch (Exception ex) {
+            if (job.getAttempts() < MAX_ATTEMPTS && !stopped) {
+                retried.incrementAndGet();
+                log.log(Level.WARNING, "Indexing failed for " + job + ", will retry", ex);
+                timer.schedule(new Runnable() {
+                    public void run() {
+                        job.setSubmissionTime(System.nanoTime());
+                        lock.lock();
+                        try {
+                            if (size >= MAX_QUEUE_SIZE || stopped) {
+                                // Retries run on the timer thread, which 
+                                // must not block
+                                failed.incrementAndGet();
+                                log.log(Level.SEVERE, "Indexing queue full, "
+                                        + "giving up on {0}", job);
+                            } else {
+                                enqueue(job);
+                            }
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }, RETRY_DELAY, TimeUnit.MILLISECONDS);
+            } else {
+                failed.incrementAndGet();
+                log.log(Level.SEVERE, "Indexing failed for " + job, ex);
+            }
+        } finally {
+            runTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+    
+    private static class DelayedJob {
+        
+        private IndexJob job;
+        
+        private long firstSubmission;
+        
+        private long deadline;
+        
+    }
+    
+    private class Worker implements Runnable {
+
+        public void run() {
+            while (true) {
+                IndexJob job;
+                try {
+                    job = take();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                if (job == null) {
+                    return;
+                }
+                
+                try {
+                    IndexingQueue.this.run(job);
+                } finally {
+                    done(job);
+                }
+            }
+        }
+        
+    }
+    
+    private static class NamedThreadFactory implements ThreadFactory {
+        
+        private final String name;
+        
+        private final AtomicInteger count = new AtomicInteger();
+
+        public NamedThreadFactory(String name) {
+            this.name = name;
+        }
+        
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,79 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service;
+
+import java.util.List;
+
+/**
+ * A page of search results.
+ *
+ * @author Vivien Barousse
+ */
+public class SearchResults {
+    
+    public static class Hit {
+        
+        private String id;
+        
+        private float score;
+
+        public Hit(String id, float score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public float getScore() {
+            return score;
+        }
+        
+    }
+    
+    private int totalHits;
+    
+    private List<Hit> hits;
+    
+    private String nextCursor;
+
+    public SearchResults(int totalHits, List<Hit> hits, String nextCursor) {
+        this.totalHits = totalHits;
+        this.hits = hits;
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * Total number of documents matching the query.
+     */
+    public int getTotalHits() {
+        return totalHits;
+    }
+
+    public List<Hit> getHits() {
+        return hits;
+    }
+
+    /**
+     * Cursor of the next page, or null if this is the last page.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+    
+}
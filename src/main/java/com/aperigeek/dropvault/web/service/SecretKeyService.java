@@ -0,0 +1,216 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.KeyStore;
+import java.security.KeyStore.SecretKeyEntry;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Provides the users' secret keys, used to encrypt their files and indexes.
+ * 
+ * Keys are stored in a password protected key store per user. Unwrapping
+ * them is expensive, so unwrapped keys are kept in a bounded in-memory cache
+ * for a limited amount of time. Cache entries are indexed by user name and
+ * by a keyed digest of the password, so that the password itself is never 
+ * kept in memory and a wrong password never hits the cache.
+ *
+ * @author Vivien Barousse
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class SecretKeyService {
+    
+    private static final Logger log = Logger.getLogger(SecretKeyService.class.getName());
+    
+    // TODO: export to configuration file
+    private static final File secretsFolder = new File("/home/dropvault/secret");
+    
+    // TODO: export to configuration file
+    private static final int MAX_ENTRIES = 1024;
+    
+    // TODO: export to configuration file
+    private static final long TTL = 15 * 60 * 1000; // 15 minutes
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    static {
+        if (!secretsFolder.exists()) {
+            secretsFolder.mkdirs();
+        }
+    }
+    
+    private SecretKey digestKey;
+    
+    private final AtomicLong hits = new AtomicLong();
+    
+    private final AtomicLong misses = new AtomicLong();
+    
+    private final AtomicLong loadTime = new AtomicLong();
+    
+    private final Map<String, CachedKey> cache = 
+            new LinkedHashMap<String, CachedKey>(16, 0.75f, true) {
+        
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedKey> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    
+    @PostConstruct
+    protected void init() {
+        try {
+            digestKey = KeyGenerator.getInstance("HmacSHA256").generateKey();
+        } catch (Exception ex) {
+            throw new RuntimeException("Bad configuration", ex);
+        }
+    }
+    
+    public SecretKey getSecretKey(String username, char[] password) {
+        String cacheKey = username + ":" + digest(password);
+        long now = System.currentTimeMillis();
+        
+        synchronized (cache) {
+            CachedKey cached = cache.get(cacheKey);
+            if (cached != null && cached.expires > now) {
+                hits.incrementAndGet();
+                return cached.key;
+            }
+        }
+        
+        misses.incrementAndGet();
+        long start = System.nanoTime();
+        SecretKey key = loadSecretKey(username, password);
+        loadTime.addAndGet(System.nanoTime() - start);
+        
+        synchronized (cache) {
+            cache.put(cacheKey, new CachedKey(key, now + TTL));
+        }
+        
+        return key;
+    }
+    
+    public long getHits() {
+        return hits.get();
+    }
+    
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    /**
+     * Average time spent loading a key from its key store, in nanoseconds.
+     */
+    public long getAverageLoadTime() {
+        long count = misses.get();
+        return count == 0 ? 0 : loadTime.get() / count;
+    }
+    
+    protected SecretKey loadSecretKey(String username, char[] password) {
+        try {
+            KeyStore store = getKeyStore(username, password);
+            SecretKeyEntry entry = (SecretKeyEntry) store.getEntry(username, new KeyStore.PasswordProtection(password));
+            return entry.getSecretKey();
+        } catch (Exception ex) {
+            // TODO: better exception handling
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    protected synchronized KeyStore getKeyStore(String username, char[] password) {
+        try {
+            File keyStoreFile = new File(secretsFolder, username + ".jks");
+            KeyStore keyStore = KeyStore.getInstance("JCEKS");
+            if (keyStoreFile.exists()) {
+                InputStream in = new FileInputStream(keyStoreFile);
+                try {
+                    keyStore.load(in, password);
+                } finally {
+                    in.close();
+                }
+                return keyStore;
+            } else {
+                KeyGenerator gen = KeyGenerator.getInstance("Blowfish");
+                SecretKey key = gen.generateKey();
+                
+                keyStore.load(null, password);
+                keyStore.setEntry(username, new SecretKeyEntry(key), new KeyStore.PasswordProtection(password));
+                
+                OutputStream out = new FileOutputStream(keyStoreFile);
+                try {
+                    keyStore.store(out, password);
+                } finally {
+                    out.close();
+                }
+                
+                return keyStore;
+            }
+        } catch (Exception ex) {
+            // TODO: better exception handling
+            log.log(Level.SEVERE, "ERROR", ex);
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    private String digest(char[] password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(digestKey);
+            ByteBuffer bytes = UTF8.encode(CharBuffer.wrap(password));
+            mac.update(bytes);
+            return new String(Hex.encodeHex(mac.doFinal()));
+        } catch (Exception ex) {
+            throw new RuntimeException("Bad configuration", ex);
+        }
+    }
+    
+    private static class CachedKey {
+        
+        private SecretKey key;
+        
+        private long expires;
+
+        public CachedKey(SecretKey key, long expires) {
+            this.key = key;
+            this.expires = expires;
+        }
+        
+    }
+    
+}
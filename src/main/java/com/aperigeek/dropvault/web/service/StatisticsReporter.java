@@ -0,0 +1,153 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service;
+
+import com.aperigeek.dropvault.web.dao.BlobCollector;
+import com.aperigeek.dropvault.web.dao.ResourcePurger;
+import com.aperigeek.dropvault.web.dao.ResourceTreeCache;
+import com.aperigeek.dropvault.web.rest.webdav.PropfindStatistics;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+
+/**
+ * Periodically logs the counters of the caches, queues and background 
+ * tasks, so that their efficiency can be followed in the server logs.
+ *
+ * @author Vivien Barousse
+ */
+@Singleton
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class StatisticsReporter {
+    
+    private static final Logger log = Logger.getLogger(StatisticsReporter.class.getName());
+    
+    // TODO: export to configuration file
+    private static final long REPORT_INTERVAL = 10 * 60 * 1000; // 10 minutes
+    
+    @EJB
+    private ResourceTreeCache treeCache;
+    
+    @EJB
+    private SecretKeyService keyService;
+    
+    @EJB
+    private CredentialCache credentialCache;
+    
+    @EJB
+    private PropfindStatistics propfindStatistics;
+    
+    @EJB
+    private IndexingQueue indexingQueue;
+    
+    @EJB
+    private IndexWriterPool writerPool;
+    
+    @EJB
+    private FileTypeDetectionService detectionService;
+    
+    @EJB
+    private ContentExtractionService extractionService;
+    
+    @EJB
+    private ExtractionWorkerPool workerPool;
+    
+    @EJB
+    private ResourcePurger purger;
+    
+    @EJB
+    private BlobCollector collector;
+    
+    private ScheduledExecutorService scheduler;
+    
+    @PostConstruct
+    protected void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "dropvault-statistics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    report();
+                } catch (RuntimeException ex) {
+                    log.log(Level.WARNING, "Could not report statistics", ex);
+                }
+            }
+        }, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    protected void stop() {
+        scheduler.shutdownNow();
+    }
+    
+    protected void report() {
+        log.log(Level.INFO, "Tree cache: {0} entries, {1} hits, {2} misses, {3} evictions", 
+                new Object[] {treeCache.getSize(), treeCache.getHits(), 
+                    treeCache.getMisses(), treeCache.getEvictions()});
+        log.log(Level.INFO, "Secret keys: {0} hits, {1} misses, {2} ns average load time", 
+                new Object[] {keyService.getHits(), keyService.getMisses(), 
+                    keyService.getAverageLoadTime()});
+        log.log(Level.INFO, "Credentials: {0} hits, {1} misses", 
+                new Object[] {credentialCache.getHits(), credentialCache.getMisses()});
+        log.log(Level.INFO, "PROPFIND: {0} requests, {1} rejected, {2} resources, "
+                + "{3} queries per request on average, {4} at most", 
+                new Object[] {propfindStatistics.getRequests(), 
+                    propfindStatistics.getRejected(), propfindStatistics.getResources(), 
+                    propfindStatistics.getAverageQueries(), propfindStatistics.getMaxQueries()});
+        log.log(Level.INFO, "Indexing: {0} pending, {1} submitted, {2} completed, "
+                + "{3} failed, {4} retried, {5} rejected, {6} coalesced, "
+                + "{7} ms average wait, {8} ms average run, {9} open indexes", 
+                new Object[] {indexingQueue.getQueueDepth(), indexingQueue.getSubmitted(), 
+                    indexingQueue.getCompleted(), indexingQueue.getFailed(), 
+                    indexingQueue.getRetried(), indexingQueue.getRejected(), 
+                    indexingQueue.getCoalesced(), indexingQueue.getAverageWaitTime(), 
+                    indexingQueue.getAverageRunTime(), writerPool.getOpenIndexes()});
+        log.log(Level.INFO, "Type detection: {0} files, {1} us average", 
+                new Object[] {detectionService.getDetections(), 
+                    detectionService.getAverageDetectionTime()});
+        log.log(Level.INFO, "Content extraction: {0} files, {1} us average, "
+                + "{2} worker jobs, {3} timeouts, {4} worker crashes, {5} workers started", 
+                new Object[] {extractionService.getExtractions(), 
+                    extractionService.getAverageExtractionTime(), workerPool.getJobs(), 
+                    workerPool.getTimeouts(), workerPool.getCrashes(), 
+                    workerPool.getStartedWorkers()});
+        log.log(Level.INFO, "Purge: {0} subtrees, {1} resources", 
+                new Object[] {purger.getPurgedTrees(), purger.getPurgedResources()});
+        
+        BlobCollector.ScanReport scan = collector.getLastReport();
+        if (scan != null) {
+            log.log(Level.INFO, "Last storage scan: {0}", scan);
+        }
+    }
+    
+}
@@ -0,0 +1,142 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Extracts text and metadata from files with Tika.
+ * 
+ * This class does not depend on the container, it is used both by 
+ * {@link ContentExtractionService} and by out-of-process extraction workers.
+ *
+ * @author Vivien Barousse
+ */
+public class TextExtractor {
+    
+    /**
+     * Parsers are stateless and thread-safe, a single instance avoids 
+     * loading the available parsers for every file.
+     */
+    private final Parser parser = new AutoDetectParser();
+    
+    /**
+     * Extracts the text and metadata of a file.
+     * 
+     * The text is kept in memory up to a number of characters, parsing 
+     * stops once it is reached.
+     * 
+     * @param fileName Name of the file
+     * @param data Content of the file
+     * @param contentType Type of the file, may be null
+     * @param maxChars Maximum number of characters extracted
+     * @return Extracted content
+     */
+    public ExtractedContent extract(String fileName, InputStream data, 
+            String contentType, int maxChars) throws ContentExtractionException {
+        
+        Metadata metadata = new Metadata();
+        metadata.set(Metadata.RESOURCE_NAME_KEY, fileName);
+        if (contentType != null) {
+            metadata.set(Metadata.CONTENT_TYPE, contentType);
+        }
+        
+        BoundedTextHandler text = new BoundedTextHandler(maxChars);
+        try {
+            parser.parse(data, 
+                    new BodyContentHandler(text), 
+                    metadata, 
+                    new ParseContext());
+        } catch (SAXException ex) {
+            if (!text.truncated) {
+                throw new ContentExtractionException("SAX exception during content extraction", ex);
+            }
+        } catch (IOException ex) {
+            if (!text.truncated) {
+                throw new ContentExtractionException("IO exception during content extraction", ex);
+            }
+        } catch (TikaException ex) {
+            // Some parsers wrap the exception stopping them
+            if (!text.truncated) {
+                throw new ContentExtractionException("Tika exception during content extraction", ex);
+            }
+        }
+        
+        Map<String, String> results = new HashMap<String, String>();
+        results.put("title", metadata.get("title"));
+        results.put("author", metadata.get("Author"));
+        
+        return new ExtractedContent(results, text.buffer, text.length, text.truncated);
+    }
+    
+    /**
+     * Collects text up to a number of characters, then stops the parser.
+     * 
+     * Parsers tag and wrap the exception used to stop them, the handler's
+     * state tells whether a parsing error was caused by the limit.
+     */
+    private static class BoundedTextHandler extends DefaultHandler {
+        
+        private final int maxChars;
+        
+        private char[] buffer;
+        
+        private int length;
+        
+        private boolean truncated;
+
+        public BoundedTextHandler(int maxChars) {
+            this.maxChars = maxChars;
+            this.buffer = new char[Math.min(maxChars, 4096)];
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int len) throws SAXException {
+            int count = Math.min(len, maxChars - length);
+            if (length + count > buffer.length) {
+                int size = Math.max(buffer.length * 2, length + count);
+                buffer = Arrays.copyOf(buffer, Math.min(size, maxChars));
+            }
+            System.arraycopy(ch, start, buffer, length, count);
+            length += count;
+            
+            if (count < len) {
+                truncated = true;
+                throw new SAXException("Character limit reached");
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int len) throws SAXException {
+            characters(ch, start, len);
+        }
+        
+    }
+    
+}
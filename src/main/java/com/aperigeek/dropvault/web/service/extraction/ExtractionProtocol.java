@@ -0,0 +1,238 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service.extraction;
+
+import com.aperigeek.dropvault.web.service.ExtractedContent;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Messages exchanged with extraction workers over their standard streams.
+ * 
+ * Once started, a worker writes {@link #READY}. Each request is then made
+ * of the file name, its content type, the maximum number of characters to 
+ * extract and the content of the file, sent as length-prefixed chunks 
+ * ended by an empty chunk. 
+ * 
+ * The worker writes a status as soon as the parser stops, which may be 
+ * before the whole content was sent: parsers stop once enough text was
+ * extracted. The application then stops sending chunks and ends the 
+ * content, while the worker skips the chunks still in transit. The status
+ * is then followed either by the extracted content or by an error message.
+ *
+ * @author Vivien Barousse
+ */
+public final class ExtractionProtocol {
+    
+    public static final int READY = 0x44;
+    
+    public static final int OK = 0;
+    
+    /**
+     * The file could not be parsed, the worker can still be used.
+     */
+    public static final int FAILED = 1;
+    
+    /**
+     * The worker is exiting and must not be used anymore.
+     */
+    public static final int FATAL = 2;
+    
+    /**
+     * Maximum size of the chunks of content sent with a request.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+    
+    private ExtractionProtocol() {
+    }
+    
+    public static void writeRequest(DataOutputStream out, String fileName, 
+            String contentType, int maxChars) throws IOException {
+        writeString(out, fileName);
+        writeString(out, contentType);
+        out.writeInt(maxChars);
+    }
+    
+    /**
+     * Sends the next chunk of content of a request.
+     * 
+     * @param length Length of the chunk, must be positive
+     */
+    public static void writeChunk(DataOutputStream out, byte[] buffer, 
+            int length) throws IOException {
+        out.writeInt(length);
+        out.write(buffer, 0, length);
+        out.flush();
+    }
+    
+    /**
+     * Ends the content of a request.
+     */
+    public static void writeEnd(DataOutputStream out) throws IOException {
+        out.writeInt(0);
+        out.flush();
+    }
+    
+    public static void writeStatus(DataOutputStream out, int status) throws IOException {
+        out.writeByte(status);
+        out.flush();
+    }
+    
+    public static void writeContent(DataOutputStream out, ExtractedContent content) throws IOException {
+        Map<String, String> metadata = content.getMetadata();
+        out.writeInt(metadata.size());
+        for (Map.Entry<String, String> e : metadata.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
+        }
+        
+        out.writeBoolean(content.isTruncated());
+        out.writeInt(content.getBodyLength());
+        Reader body = content.getBody();
+        char[] chars = new char[CHUNK_SIZE];
+        byte[] bytes = new byte[CHUNK_SIZE * 2];
+        int read;
+        while ((read = body.read(chars)) != -1) {
+            for (int i = 0; i < read; i++) {
+                bytes[2 * i] = (byte) (chars[i] >>> 8);
+                bytes[2 * i + 1] = (byte) chars[i];
+            }
+            out.write(bytes, 0, read * 2);
+        }
+        out.flush();
+    }
+    
+    public static void writeError(DataOutputStream out, String message) throws IOException {
+        writeString(out, message);
+        out.flush();
+    }
+    
+    public static ExtractedContent readContent(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, String> metadata = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            metadata.put(readString(in), readString(in));
+        }
+        
+        boolean truncated = in.readBoolean();
+        int length = in.readInt();
+        char[] body = new char[length];
+        byte[] bytes = new byte[CHUNK_SIZE * 2];
+        for (int offset = 0; offset < length; offset += CHUNK_SIZE) {
+            int chars = Math.min(CHUNK_SIZE, length - offset);
+            in.readFully(bytes, 0, chars * 2);
+            for (int i = 0; i < chars; i++) {
+                body[offset + i] = (char) (((bytes[2 * i] & 0xff) << 8) 
+                        | (bytes[2 * i + 1] & 0xff));
+            }
+        }
+        
+        return new ExtractedContent(metadata, body, length, truncated);
+    }
+    
+    public static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = str.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+    
+    public static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+    
+    /**
+     * Reads the content of a file sent in chunks.
+     * 
+     * Closing the stream does not close the underlying stream, 
+     * {@link #drain()} must be called to skip the rest of the content when
+     * it has not been read completely.
+     */
+    public static class ChunkInputStream extends InputStream {
+        
+        private final DataInputStream in;
+        
+        private int remaining;
+        
+        private boolean finished;
+
+        public ChunkInputStream(DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            remaining--;
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int read = in.read(b, off, Math.min(len, remaining));
+            if (read == -1) {
+                throw new EOFException("Truncated chunk");
+            }
+            remaining -= read;
+            return read;
+        }
+        
+        public void drain() throws IOException {
+            // Standard input is a pipe, which does not support skipping
+            byte[] buffer = new byte[CHUNK_SIZE];
+            while (read(buffer, 0, buffer.length) != -1) {
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+        
+        private boolean nextChunk() throws IOException {
+            if (remaining == 0 && !finished) {
+                remaining = in.readInt();
+                finished = remaining == 0;
+            }
+            return !finished;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,113 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service.extraction;
+
+import com.aperigeek.dropvault.web.service.ContentExtractionException;
+import com.aperigeek.dropvault.web.service.ExtractedContent;
+import com.aperigeek.dropvault.web.service.TextExtractor;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Entry point of the extraction worker processes.
+ * 
+ * Workers extract files one at a time, as requested by the application 
+ * on their standard input, until it is closed. Their standard output is
+ * reserved to the {@link ExtractionProtocol}, anything printed by the 
+ * parsers goes to the standard error.
+ *
+ * @author Vivien Barousse
+ */
+public final class ExtractionWorker {
+    
+    private ExtractionWorker() {
+    }
+    
+    public static void main(String[] args) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(FileDescriptor.in)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err);
+        
+        TextExtractor extractor = new TextExtractor();
+        out.writeByte(ExtractionProtocol.READY);
+        out.flush();
+        
+        while (true) {
+            String fileName;
+            try {
+                fileName = ExtractionProtocol.readString(in);
+            } catch (EOFException ex) {
+                return;
+            }
+            String contentType = ExtractionProtocol.readString(in);
+            int maxChars = in.readInt();
+            
+            ExtractionProtocol.ChunkInputStream data = 
+                    new ExtractionProtocol.ChunkInputStream(in);
+            ExtractedContent content = null;
+            String error = null;
+            boolean fatal = false;
+            try {
+                content = extractor.extract(fileName, data, contentType, maxChars);
+            } catch (ContentExtractionException ex) {
+                error = describe(ex);
+            } catch (RuntimeException ex) {
+                error = describe(ex);
+            } catch (OutOfMemoryError ex) {
+                error = "Out of memory";
+                fatal = true;
+            } catch (StackOverflowError ex) {
+                error = "Stack overflow";
+                fatal = true;
+            }
+            
+            // Answer right away so that the application stops sending the
+            // content, then skip what was sent in the meantime
+            if (content != null) {
+                ExtractionProtocol.writeStatus(out, ExtractionProtocol.OK);
+                data.drain();
+                ExtractionProtocol.writeContent(out, content);
+            } else if (fatal) {
+                ExtractionProtocol.writeStatus(out, ExtractionProtocol.FATAL);
+                ExtractionProtocol.writeError(out, error);
+                System.exit(1);
+            } else {
+                ExtractionProtocol.writeStatus(out, ExtractionProtocol.FAILED);
+                data.drain();
+                ExtractionProtocol.writeError(out, error);
+            }
+        }
+    }
+    
+    private static String describe(Throwable ex) {
+        StringBuilder message = new StringBuilder(ex.toString());
+        for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+            message.append(", caused by ").append(cause);
+        }
+        return message.toString();
+    }
+    
+}
@@ -0,0 +1,171 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service.extraction;
+
+import com.aperigeek.dropvault.web.service.ContentExtractionException;
+import com.aperigeek.dropvault.web.service.ExtractedContent;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An extraction worker process, as seen from the application.
+ * 
+ * A worker handles a single request at a time. An {@link IOException} 
+ * means the worker is not usable anymore and must be killed.
+ *
+ * @author Vivien Barousse
+ */
+public class WorkerProcess {
+    
+    private static final Logger log = Logger.getLogger(WorkerProcess.class.getName());
+    
+    private static final AtomicInteger counter = new AtomicInteger();
+    
+    private final String name;
+    
+    private final Process process;
+    
+    private final DataInputStream in;
+    
+    private final DataOutputStream out;
+    
+    private boolean ready;
+    
+    private int jobs;
+    
+    private volatile long lastActivity;
+    
+    private volatile boolean killed;
+
+    public WorkerProcess(List<String> command) throws IOException {
+        this.name = "dropvault-extraction-worker-" + counter.incrementAndGet();
+        this.process = new ProcessBuilder(command).start();
+        this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        
+        // The error stream must be read, or the worker blocks once the 
+        // pipe is full
+        Thread logger = new Thread(new Runnable() {
+            public void run() {
+                logErrors(process.getErrorStream());
+            }
+        }, name + "-stderr");
+        logger.setDaemon(true);
+        logger.start();
+    }
+    
+    /**
+     * Extracts a file in the worker.
+     * 
+     * @throws ContentExtractionException If the worker could not parse the
+     *         file
+     * @throws IOException If the worker could not be reached
+     */
+    public ExtractedContent extract(String fileName, InputStream data, 
+            String contentType, int maxChars) throws ContentExtractionException, IOException {
+        
+        lastActivity = System.currentTimeMillis();
+        if (!ready) {
+            if (in.read() != ExtractionProtocol.READY) {
+                throw new IOException("Extraction worker failed to start");
+            }
+            ready = true;
+        }
+        
+        jobs++;
+        ExtractionProtocol.writeRequest(out, fileName, contentType, maxChars);
+        
+        // The worker answers as soon as the parser stopped, the rest of
+        // the content is not needed then
+        byte[] buffer = new byte[ExtractionProtocol.CHUNK_SIZE];
+        int read;
+        while (in.available() == 0 && (read = data.read(buffer)) != -1) {
+            if (read > 0) {
+                ExtractionProtocol.writeChunk(out, buffer, read);
+                lastActivity = System.currentTimeMillis();
+            }
+        }
+        ExtractionProtocol.writeEnd(out);
+        lastActivity = System.currentTimeMillis();
+        
+        int status = in.readByte();
+        switch (status) {
+            case ExtractionProtocol.OK:
+                return ExtractionProtocol.readContent(in);
+            case ExtractionProtocol.FAILED:
+                throw new ContentExtractionException(ExtractionProtocol.readString(in));
+            case ExtractionProtocol.FATAL:
+                String message = ExtractionProtocol.readString(in);
+                kill();
+                throw new ContentExtractionException(message);
+            default:
+                throw new IOException("Unexpected status from extraction worker: " + status);
+        }
+    }
+    
+    /**
+     * Time at which the worker last accepted some content, or at which the 
+     * whole content was sent.
+     */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+    
+    /**
+     * Number of files sent to this worker.
+     */
+    public int getJobs() {
+        return jobs;
+    }
+    
+    public boolean isKilled() {
+        return killed;
+    }
+    
+    public void kill() {
+        killed = true;
+        process.destroy();
+    }
+    
+    @Override
+    public String toString() {
+        return name;
+    }
+    
+    private void logErrors(InputStream err) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(err));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                log.log(Level.INFO, "[{0}] {1}", new Object[] {name, line});
+            }
+        } catch (IOException ex) {
+            // The worker exited
+        }
+    }
+    
+}
@@ -16,48 +16,99 @@
  */
 package com.aperigeek.dropvault.web.service.index;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import org.apache.lucene.store.BufferedIndexInput;
+import org.apache.lucene.store.BufferedIndexOutput;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.SimpleFSDirectory;
 
 /**
+ * Lucene directory encrypting all the index files.
+ * 
+ * Files are made of a plain header, containing the length of the file
+ * content, followed by the content encrypted in counter mode. Any block of
+ * the file can thus be decrypted independently from the others, allowing
+ * random access without decrypting the whole file.
+ * 
+ * Files written by earlier versions, encrypted as a whole, are migrated to 
+ * the new format when first opened.
  *
  * @author Vivien Barousse
  */
 public class CipherDirectory extends SimpleFSDirectory {
+    
+    /**
+     * Size of the blocks read at once from the index files.
+     */
+    public static final int BLOCK_SIZE = 4 * 1024; // 4k
+    
+    private static final int MAGIC = 0x44564346; // "DVCF"
+    
+    private static final int VERSION = 1;
+    
+    /*
+     * Magic number, version, cipher block size, nonce, content length
+     */
+    private static final int HEADER_LENGTH = 4 + 4 + 4 + 8 + 8;
+    
+    private static final String LEGACY_TRANSFORMATION = "Blowfish";
+    
+    private static final String TRANSFORMATION = "Blowfish/CTR/NoPadding";
+    
+    private static final int CIPHER_BLOCK_SIZE = 8;
+    
+    private static final String MIGRATION_SUFFIX = ".migrating";
+    
+    private static final SecureRandom random = new SecureRandom();
 
     private SecretKey key;
     
+    /*
+     * Files known to be in the current format
+     */
+    private final Set<String> checked = 
+            Collections.synchronizedSet(new HashSet<String>());
+    
     public CipherDirectory(File path, SecretKey key) throws IOException {
         super(path);
         this.key = key;
     }
 
-    /*
-     * TODO: Performance issue!
-     * The content of the file has to be decrypted to
-     * determine with precision the actual file length...
-     * Maybe something more efficient can be done instead.
-     */
     @Override
     public long fileLength(String name) throws IOException {
         File file = new File(getDirectory(), name);
-        return getByteBuffer(file).length;
+        migrate(file);
+        
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return readHeader(in).length;
+        } finally {
+            in.close();
+        }
     }
 
     @Override
     public IndexInput openInput(String name) throws IOException {
         File file = new File(getDirectory(), name);
+        migrate(file);
+        
         CipherIndexInput input = new CipherIndexInput(file);
         return input;
     }
@@ -70,218 +121,306 @@ public class CipherDirectory extends SimpleFSDirectory {
     @Override
     public IndexOutput createOutput(String name) throws IOException {
         File file = new File(getDirectory(), name);
+        // Files being written must never be mistaken for legacy ones
+        checked.add(name);
+        
         return new CipherIndexOutput(file);
     }
 
-    protected DynamicByteBuffer getByteBuffer(File file) throws IOException {
-        if (!file.exists()) {
-            return new DynamicByteBuffer();
-        }
-        
-        InputStream plain = new FileInputStream(file);
-        InputStream in = new CipherInputStream(plain, getCipher(Cipher.DECRYPT_MODE));
-        
-        DynamicByteBuffer byteBuffer = new DynamicByteBuffer();
-        byte[] src = new byte[2048];
-        int readed;
-        while ((readed = in.read(src)) != -1) {
-            byteBuffer.put(src, 0, readed);
-        }
-        byteBuffer.setPosition(0);
-        
-        in.close();
-        plain.close();
-        
-        return byteBuffer;
-    }
-    
-    protected Cipher getCipher(int mode) {
+    protected Cipher getCipher() {
         try {
-            Cipher cipher = Cipher.getInstance("Blowfish");
-            cipher.init(mode, key);
-            return cipher;
+            return Cipher.getInstance(TRANSFORMATION);
         } catch (Exception ex) {
             throw new RuntimeException("Bad configuration", ex);
         }
     }
-
-    public class CipherIndexInput extends IndexInput {
-        
-        private File file;
-
-        private DynamicByteBuffer byteBuffer;
-
-        public CipherIndexInput(File file) throws IOException {
-            this.file = file;
-            load();
+    
+    /**
+     * Encrypts or decrypts, in place, a portion of a file content.
+     * 
+     * @param cipher Cipher to use, reinitialized by this method
+     * @param mode Cipher mode
+     * @param nonce Nonce of the file
+     * @param position Position of the data in the file content
+     * @param data Data to encrypt or decrypt
+     * @param off Offset of the data in the array
+     * @param len Length of the data
+     */
+    protected void crypt(Cipher cipher, int mode, long nonce, long position,
+            byte[] data, int off, int len) throws IOException {
+        try {
+            long counter = nonce + position / CIPHER_BLOCK_SIZE;
+            byte[] iv = ByteBuffer.allocate(CIPHER_BLOCK_SIZE).putLong(counter).array();
+            cipher.init(mode, key, new IvParameterSpec(iv));
+            
+            int skip = (int) (position % CIPHER_BLOCK_SIZE);
+            if (skip > 0) {
+                cipher.update(new byte[skip]);
+            }
+            
+            cipher.update(data, off, len, data, off);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
         }
-
-        @Override
-        public void close() throws IOException {
-            byteBuffer = null;
+    }
+    
+    protected Header readHeader(RandomAccessFile in) throws IOException {
+        in.seek(0);
+        if (in.readInt() != MAGIC || in.readInt() != VERSION 
+                || in.readInt() != CIPHER_BLOCK_SIZE) {
+            throw new IOException("Invalid encrypted file header");
         }
-
-        @Override
-        public long getFilePointer() {
-            return byteBuffer.getPosition();
+        Header header = new Header();
+        header.nonce = in.readLong();
+        header.length = in.readLong();
+        return header;
+    }
+    
+    protected void writeHeader(RandomAccessFile out, Header header) throws IOException {
+        out.seek(0);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(CIPHER_BLOCK_SIZE);
+        out.writeLong(header.nonce);
+        out.writeLong(header.length);
+    }
+    
+    /**
+     * Writes a whole file content in the current format.
+     */
+    protected void writeFile(File file, InputStream data) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            
+            Header header = new Header();
+            header.nonce = random.nextLong();
+            writeHeader(out, header);
+            
+            Cipher cipher = getCipher();
+            byte[] buffer = new byte[BLOCK_SIZE];
+            int readed;
+            while ((readed = data.read(buffer)) != -1) {
+                crypt(cipher, Cipher.ENCRYPT_MODE, header.nonce, header.length, 
+                        buffer, 0, readed);
+                out.write(buffer, 0, readed);
+                header.length += readed;
+            }
+            
+            writeHeader(out, header);
+        } finally {
+            out.close();
         }
-
-        @Override
-        public void seek(long l) throws IOException {
-            byteBuffer.setPosition((int) l);
+    }
+    
+    /**
+     * Checks whether a file was written in the legacy format.
+     * 
+     * Only files without the magic number are legacy files. A file with an
+     * invalid header, or whose length does not match its header, is 
+     * corrupted and must not be migrated.
+     * 
+     * @throws IOException If the file is corrupted
+     */
+    protected boolean isLegacy(File file) throws IOException {
+        if (!file.exists()) {
+            return false;
         }
-
-        @Override
-        public long length() {
-            return byteBuffer.getLength();
+        
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() < 4 || in.readInt() != MAGIC) {
+                return true;
+            }
+            
+            Header header;
+            try {
+                header = readHeader(in);
+            } catch (EOFException ex) {
+                throw new IOException("Truncated encrypted file header: " + file, ex);
+            }
+            if (header.length != in.length() - HEADER_LENGTH) {
+                throw new IOException("Encrypted file length does not match its header: " + file);
+            }
+            return false;
+        } finally {
+            in.close();
         }
-
-        @Override
-        public byte readByte() throws IOException {
-            return byteBuffer.get();
+    }
+    
+    /**
+     * Rewrites a file written in the legacy format, if needed.
+     */
+    protected void migrate(File file) throws IOException {
+        if (checked.contains(file.getName())) {
+            return;
         }
+        
+        synchronized (this) {
+            if (isLegacy(file)) {
+                File migrated = new File(file.getParentFile(), file.getName() + MIGRATION_SUFFIX);
+
+                InputStream in = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    Cipher cipher = Cipher.getInstance(LEGACY_TRANSFORMATION);
+                    cipher.init(Cipher.DECRYPT_MODE, key);
+                    writeFile(migrated, new CipherInputStream(in, cipher));
+                } catch (GeneralSecurityException ex) {
+                    throw new IOException(ex);
+                } finally {
+                    in.close();
+                }
 
-        @Override
-        public void readBytes(byte[] buffer, int off, int len) throws IOException {
-            byteBuffer.get(buffer, off, len);
+                if (!migrated.renameTo(file)) {
+                    migrated.delete();
+                    throw new IOException("Unable to migrate " + file);
+                }
+            }
+            
+            if (file.exists()) {
+                checked.add(file.getName());
+            }
         }
+    }
+    
+    protected static class Header {
         
-        protected void load() throws IOException {
-            byteBuffer = getByteBuffer(file);
-        }
+        private long nonce;
+        
+        private long length;
         
     }
 
-    public class CipherIndexOutput extends IndexOutput {
-
-        private File file;
+    public class CipherIndexInput extends BufferedIndexInput {
+        
+        private RandomAccessFile file;
+        
+        private Header header;
         
-        private DynamicByteBuffer byteBuffer;
+        private Cipher cipher;
+        
+        private boolean clone;
 
-        public CipherIndexOutput(File file) throws IOException {
-            this.file = file;
-            this.byteBuffer = getByteBuffer(file);
+        public CipherIndexInput(File file) throws IOException {
+            super(BLOCK_SIZE);
+            this.file = new RandomAccessFile(file, "r");
+            try {
+                this.header = readHeader(this.file);
+            } catch (IOException ex) {
+                this.file.close();
+                throw ex;
+            }
+            this.cipher = getCipher();
         }
 
         @Override
-        public void flush() throws IOException {
-            OutputStream plaout = new FileOutputStream(file);
-            OutputStream out = new CipherOutputStream(plaout, getCipher(Cipher.ENCRYPT_MODE));
-            out.write(byteBuffer.toByteArray());
-            out.flush();
-            out.close();
-            plaout.close();
+        protected void readInternal(byte[] b, int offset, int len) throws IOException {
+            long position = getFilePointer();
+            if (position + len > header.length) {
+                throw new EOFException("read past EOF");
+            }
+            
+            synchronized (file) {
+                file.seek(HEADER_LENGTH + position);
+                file.readFully(b, offset, len);
+            }
+            crypt(cipher, Cipher.DECRYPT_MODE, header.nonce, position, b, offset, len);
         }
 
         @Override
-        public void close() throws IOException {
-            flush();
-            byteBuffer = null;
+        protected void seekInternal(long pos) throws IOException {
         }
 
         @Override
-        public long getFilePointer() {
-            return byteBuffer.getPosition();
+        public void close() throws IOException {
+            if (!clone) {
+                file.close();
+            }
         }
 
         @Override
-        public void seek(long l) throws IOException {
-            byteBuffer.setPosition((int) l);
+        public long length() {
+            return header.length;
         }
 
         @Override
-        public long length() throws IOException {
-            return byteBuffer.getLength();
+        public Object clone() {
+            CipherIndexInput input = (CipherIndexInput) super.clone();
+            input.clone = true;
+            input.cipher = getCipher();
+            return input;
         }
+        
+    }
 
-        @Override
-        public void writeByte(byte b) throws IOException {
-            byteBuffer.put(b);
-        }
+    /**
+     * Index output encrypting data as it is written.
+     * 
+     * Only the header is rewritten when the output is closed, so flushing
+     * costs are proportional to the amount of data written since the last
+     * flush.
+     */
+    public class CipherIndexOutput extends BufferedIndexOutput {
 
-        @Override
-        public void writeBytes(byte[] src, int off, int len) throws IOException {
-            byteBuffer.put(src, off, len);
-        }
-    }
-    
-    public static class DynamicByteBuffer {
+        private RandomAccessFile file;
         
-        public static final int INITIAL_SIZE = 4 * 1024; // 4k
+        private Header header;
         
-        private byte[] buffer;
+        private Cipher cipher;
         
-        private int length;
+        private byte[] block = new byte[BLOCK_SIZE];
         
-        private int position;
-
-        public DynamicByteBuffer() {
-            buffer = new byte[INITIAL_SIZE];
-            length = 0;
-            position = 0;
-        }
+        private long position;
 
-        public DynamicByteBuffer(int size) {
-            this();
-            ensureCapacity(size);
-        }
-        
-        public byte get() {
-            return buffer[position++];
-        }
-        
-        public void get(byte[] dest, int off, int len) {
-            System.arraycopy(buffer, position, dest, off, len);
-            position += len;
-        }
-        
-        public void put(byte b) {
-            ensureCapacity(position + 1);
-            buffer[position++] = b;
-            if (position > length) {
-                length = position;
+        public CipherIndexOutput(File file) throws IOException {
+            this.file = new RandomAccessFile(file, "rw");
+            this.header = new Header();
+            this.header.nonce = random.nextLong();
+            this.cipher = getCipher();
+            
+            try {
+                this.file.setLength(0);
+                writeHeader(this.file, header);
+            } catch (IOException ex) {
+                this.file.close();
+                throw ex;
             }
         }
-        
-        public void put(byte[] src, int off, int len) {
-            ensureCapacity(position + len);
-            System.arraycopy(src, off, buffer, position, len);
-            position += len;
-            if (position > length) {
-                length = position;
+
+        @Override
+        protected void flushBuffer(byte[] b, int offset, int len) throws IOException {
+            while (len > 0) {
+                int chunk = Math.min(len, block.length);
+                System.arraycopy(b, offset, block, 0, chunk);
+                crypt(cipher, Cipher.ENCRYPT_MODE, header.nonce, position, block, 0, chunk);
+                file.write(block, 0, chunk);
+                
+                position += chunk;
+                offset += chunk;
+                len -= chunk;
             }
+            header.length = Math.max(header.length, position);
         }
 
-        public int getLength() {
-            return length;
+        @Override
+        public void seek(long pos) throws IOException {
+            super.seek(pos);
+            position = pos;
+            file.seek(HEADER_LENGTH + pos);
         }
 
-        public int getPosition() {
-            return position;
+        @Override
+        public long length() throws IOException {
+            return Math.max(header.length, getFilePointer());
         }
 
-        public void setPosition(int position) {
-            this.position = position;
-        }
-        
-        public byte[] toByteArray() {
-            byte[] byteArray = new byte[length];
-            System.arraycopy(buffer, 0, byteArray, 0, length);
-            return byteArray;
-        }
-        
-        protected void ensureCapacity(int min) {
-            if (min > buffer.length) {
-                int newLength = buffer.length;
-                while (newLength > 0 && newLength < min) {
-                    newLength *= 2;
-                }
-                if (newLength < 0) {
-                    throw new RuntimeException("RAM file to big");
-                }
-                byte[] newBuffer = new byte[newLength];
-                System.arraycopy(buffer, 0, newBuffer, 0, length);
-                buffer = newBuffer;
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+                writeHeader(file, header);
+            } finally {
+                file.close();
             }
         }
         
@@ -0,0 +1,141 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service.index;
+
+import java.io.IOException;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.PriorityQueue;
+
+/**
+ * Collects the best hits ranked after a given hit.
+ * 
+ * Hits are ordered by decreasing score, then by increasing document 
+ * number. Only the requested number of hits is kept in memory, whatever
+ * the position of the page, so that deep pages cost no more than the 
+ * first one.
+ *
+ * @author Vivien Barousse
+ */
+public class SearchAfterCollector extends Collector {
+    
+    private final ScoreDoc after;
+    
+    private final HitQueue queue;
+    
+    private Scorer scorer;
+    
+    private int docBase;
+    
+    private int totalHits;
+    
+    private int remainingHits;
+    
+    private ScoreDoc spare;
+
+    /**
+     * @param after Last hit of the previous page, null for the first page
+     * @param numHits Number of hits to collect
+     */
+    public SearchAfterCollector(ScoreDoc after, int numHits) {
+        this.after = after;
+        this.queue = new HitQueue(numHits);
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+        this.scorer = scorer;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        totalHits++;
+        
+        float score = scorer.score();
+        doc += docBase;
+        if (after != null && (score > after.score 
+                || (score == after.score && doc <= after.doc))) {
+            return;
+        }
+        
+        remainingHits++;
+        
+        // Hits evicted from the queue are reused for the next ones
+        ScoreDoc hit = spare;
+        if (hit == null) {
+            hit = new ScoreDoc(doc, score);
+        } else {
+            hit.doc = doc;
+            hit.score = score;
+        }
+        spare = queue.insertWithOverflow(hit);
+    }
+
+    @Override
+    public void setNextReader(IndexReader reader, int docBase) throws IOException {
+        this.docBase = docBase;
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return true;
+    }
+    
+    /**
+     * @return Total number of documents matching the query
+     */
+    public int getTotalHits() {
+        return totalHits;
+    }
+
+    /**
+     * @return Number of matching documents ranked after the given hit
+     */
+    public int getRemainingHits() {
+        return remainingHits;
+    }
+    
+    /**
+     * @return Collected hits, best first
+     */
+    public ScoreDoc[] getHits() {
+        ScoreDoc[] hits = new ScoreDoc[queue.size()];
+        for (int i = hits.length - 1; i >= 0; i--) {
+            hits[i] = queue.pop();
+        }
+        return hits;
+    }
+    
+    private static class HitQueue extends PriorityQueue<ScoreDoc> {
+
+        public HitQueue(int size) {
+            initialize(size);
+        }
+
+        @Override
+        protected boolean lessThan(ScoreDoc a, ScoreDoc b) {
+            if (a.score == b.score) {
+                return a.doc > b.doc;
+            }
+            return a.score < b.score;
+        }
+        
+    }
+    
+}
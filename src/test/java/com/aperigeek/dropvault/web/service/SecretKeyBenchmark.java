@@ -0,0 +1,126 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.security.KeyStore.SecretKeyEntry;
+import javax.crypto.KeyGenerator;
+
+/**
+ * Compares loading a secret key from its key store on every request, as 
+ * done before, with the cached keys of {@link SecretKeyService}.
+ * 
+ * The key store is created in a temporary file rather than in the secrets
+ * folder. Run with the test class path:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.aperigeek.dropvault.web.service.SecretKeyBenchmark \
+ *     -Dexec.args=200
+ * </pre>
+ *
+ * @author Vivien Barousse
+ */
+public class SecretKeyBenchmark {
+    
+    private static final String USERNAME = "benchmark";
+    
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+    
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        
+        File keyStoreFile = File.createTempFile("dropvault", ".jks");
+        try {
+            createKeyStore(keyStoreFile);
+            
+            SecretKeyService service = new TemporarySecretKeyService(keyStoreFile);
+            service.init();
+            
+            // Warm up class loading and the JIT
+            for (int i = 0; i < 20; i++) {
+                service.loadSecretKey(USERNAME, PASSWORD);
+                service.getSecretKey(USERNAME, PASSWORD);
+            }
+            
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                service.loadSecretKey(USERNAME, PASSWORD);
+            }
+            report("Key store per request", start, iterations);
+            
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                service.getSecretKey(USERNAME, PASSWORD);
+            }
+            report("Cached key", start, iterations);
+        } finally {
+            keyStoreFile.delete();
+        }
+    }
+    
+    private static void createKeyStore(File file) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JCEKS");
+        keyStore.load(null, PASSWORD);
+        keyStore.setEntry(USERNAME, 
+                new SecretKeyEntry(KeyGenerator.getInstance("Blowfish").generateKey()), 
+                new KeyStore.PasswordProtection(PASSWORD));
+        
+        OutputStream out = new FileOutputStream(file);
+        try {
+            keyStore.store(out, PASSWORD);
+        } finally {
+            out.close();
+        }
+    }
+    
+    private static void report(String name, long start, int iterations) {
+        long average = (System.nanoTime() - start) / iterations / 1000;
+        System.out.println(name + ": " + average + " us per request");
+    }
+    
+    private static class TemporarySecretKeyService extends SecretKeyService {
+        
+        private final File keyStoreFile;
+
+        public TemporarySecretKeyService(File keyStoreFile) {
+            this.keyStoreFile = keyStoreFile;
+        }
+
+        @Override
+        protected synchronized KeyStore getKeyStore(String username, char[] password) {
+            try {
+                KeyStore keyStore = KeyStore.getInstance("JCEKS");
+                InputStream in = new FileInputStream(keyStoreFile);
+                try {
+                    keyStore.load(in, password);
+                } finally {
+                    in.close();
+                }
+                return keyStore;
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,108 @@
+/*  
+ * This file is part of dropvault.
+ *
+ * dropvault is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dropvault is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dropvault.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.aperigeek.dropvault.web.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.tika.Tika;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.sax.BodyContentHandler;
+
+/**
+ * Compares content type detection and text extraction with Tika instances 
+ * created for every file, as done before, and with the shared instances of
+ * {@link FileTypeDetectionService} and {@link TextExtractor}.
+ * 
+ * Run with the test class path:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.aperigeek.dropvault.web.service.TikaBenchmark \
+ *     -Dexec.args=200
+ * </pre>
+ *
+ * @author Vivien Barousse
+ */
+public class TikaBenchmark {
+    
+    private static final String NAME = "document";
+    
+    private static final byte[] HTML = ("<html><head><title>Benchmark</title></head>"
+            + "<body><p>The quick brown fox jumps over the lazy dog.</p></body></html>")
+            .getBytes();
+    
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        Logger.getLogger(FileTypeDetectionService.class.getName()).setLevel(Level.WARNING);
+        
+        FileTypeDetectionService detection = new FileTypeDetectionService();
+        detection.init();
+        TextExtractor extractor = new TextExtractor();
+        
+        // Warm up class loading and the JIT
+        for (int i = 0; i < 20; i++) {
+            new Tika().detect(HTML, NAME);
+            detection.detectFileType(NAME, stream());
+            newParser();
+            extractor.extract(NAME, stream(), null, 1024 * 1024);
+        }
+        
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            new Tika().detect(HTML, NAME);
+        }
+        report("Detection, new Tika per file", start, iterations);
+        
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            detection.detectFileType(NAME, stream());
+        }
+        report("Detection, shared Tika", start, iterations);
+        
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            newParser();
+        }
+        report("Extraction, new parser per file", start, iterations);
+        
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            extractor.extract(NAME, stream(), null, 1024 * 1024);
+        }
+        report("Extraction, shared parser", start, iterations);
+    }
+    
+    private static InputStream stream() {
+        return new BufferedInputStream(new ByteArrayInputStream(HTML), 
+                FileTypeDetectionService.PREFIX_LENGTH);
+    }
+    
+    private static void newParser() throws Exception {
+        new AutoDetectParser().parse(stream(), new BodyContentHandler(), 
+                new Metadata(), new ParseContext());
+    }
+    
+    private static void report(String name, long start, int iterations) {
+        long average = (System.nanoTime() - start) / iterations / 1000;
+        System.out.println(name + ": " + average + " us per file");
+    }
+    
+}